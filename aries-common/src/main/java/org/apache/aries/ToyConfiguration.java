@@ -38,10 +38,21 @@ public class ToyConfiguration {
     return new ToyConfiguration(Paths.get(dir_of_property_file, "toy.properties"));
   }
 
+  /**
+   * @param properties properties taken from elsewhere, e.g. a section of a manifest, they are copied
+   */
+  public static ToyConfiguration create(Properties properties) {
+    return new ToyConfiguration(properties);
+  }
+
   private ToyConfiguration(Path toy_property_file) throws IOException {
     properties.load(new FileReader(toy_property_file.toFile()));
   }
 
+  private ToyConfiguration(Properties properties) {
+    this.properties.putAll(properties);
+  }
+
   public boolean containsKey(String key) {
     return properties.containsKey(key);
   }
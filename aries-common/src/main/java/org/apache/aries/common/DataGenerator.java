@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.SplittableRandom;
+
+/**
+ * Generates keys and values into reusable byte arrays, for hot loops of load generating toys.
+ * It is not thread-safe, each thread should own one. Arrays returned are overwritten by the next call,
+ * so copy them if they must be retained, HBase's Put and KeyValue copy them already.
+ */
+public final class DataGenerator {
+
+  private static final byte[] ALPHANUMERIC = ToyUtils.RANDOM_CHARS.getBytes(StandardCharsets.UTF_8);
+  private static final Base64.Encoder ENCODER = Base64.getEncoder();
+
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private final SplittableRandom random;
+  private final byte[] key;
+  private final byte[] value;
+  private final byte[] encoded_key;
+  private final ValueSize sizes;
+  private final double compression_ratio;
+  private int value_length;
+
+  public DataGenerator(int key_length, int value_length) {
+    this(new SplittableRandom(), key_length, value_length);
+  }
+
+  public DataGenerator(SplittableRandom random, int key_length, int value_length) {
+    this(random, key_length, new ValueSize.Fixed(value_length), 0);
+  }
+
+  /**
+   * @param sizes distribution of value sizes
+   * @param compression_ratio ratio of original to compressed size values aim at, at least 1. Only 1/ratio of a value is
+   *                          random bytes, the rest is a repeated pattern. If not positive, values are all random alphanumeric
+   */
+  public DataGenerator(SplittableRandom random, int key_length, ValueSize sizes, double compression_ratio) {
+    if (compression_ratio > 0 && compression_ratio < 1) {
+      throw new IllegalArgumentException("Compression ratio should be at least 1, but got " + compression_ratio);
+    }
+    this.random = random;
+    this.key = new byte[key_length];
+    this.value = new byte[sizes.max()];
+    this.encoded_key = new byte[4 * ((key_length + 2) / 3)];
+    this.sizes = sizes;
+    this.compression_ratio = compression_ratio;
+  }
+
+  /**
+   * @return a random alphanumeric key in a reused array
+   */
+  public byte[] nextKey() {
+    fillAlphanumeric(key, 0, key.length);
+    return key;
+  }
+
+  /**
+   * @return a random value in a reused array, only the first {@link #valueLength()} bytes are the value
+   */
+  public byte[] nextValue() {
+    return fillValue(random.nextLong());
+  }
+
+  /**
+   * Value is determined by key and seed only, so a row read back can be checked without knowing
+   * which writer wrote it last.
+   * @return a pseudo random value of key in a reused array, only the first {@link #valueLength()} bytes are the value
+   */
+  public byte[] valueOf(byte[] key, long seed) {
+    return fillValue(seed ^ KeyDistribution.scramble(Arrays.hashCode(key)));
+  }
+
+  /**
+   * @return length of the last value generated
+   */
+  public int valueLength() {
+    return value_length;
+  }
+
+  private byte[] fillValue(long state) {
+    int length = sizes.next(mix(state += GOLDEN_GAMMA));
+    int random_length = compression_ratio > 0 ? (int) Math.ceil(length / compression_ratio) : length;
+    long bits = 0;
+    for (int i = 0; i < random_length; i++) {
+      if ((i & 7) == 0) {
+        bits = mix(state += GOLDEN_GAMMA);
+      }
+      value[i] = compression_ratio > 0 ? (byte) bits : ALPHANUMERIC[(int) ((bits & 0xff) % ALPHANUMERIC.length)];
+      bits >>>= 8;
+    }
+    // Compressible part, a short period pattern that block compression and encoding squeeze away
+    for (int i = random_length; i < length; i++) {
+      value[i] = ALPHANUMERIC[i % ALPHANUMERIC.length];
+    }
+    value_length = length;
+    return value;
+  }
+
+  /**
+   * SplitMix64 finalizer.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * @return Base64 of the last key generated, in a reused array
+   */
+  public byte[] encodedKey() {
+    return encode(key);
+  }
+
+  /**
+   * @param src bytes of key length, e.g. a key rendered by {@link KeyFormatter}
+   * @return Base64 of src, in a reused array
+   */
+  public byte[] encode(byte[] src) {
+    if (src.length != key.length) {
+      throw new IllegalArgumentException("Expect " + key.length + " bytes to encode, but got " + src.length);
+    }
+    ENCODER.encode(src, encoded_key);
+    return encoded_key;
+  }
+
+  /**
+   * @return random source of this generator
+   */
+  public SplittableRandom random() {
+    return random;
+  }
+
+  /**
+   * Fill a range of buffer with random alphanumeric characters.
+   */
+  public void fillAlphanumeric(byte[] buffer, int offset, int length) {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      buffer[i] = ALPHANUMERIC[random.nextInt(ALPHANUMERIC.length)];
+    }
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.aries.annotation.ThreadSafe;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Prints throughput and latency of registered meters every interval, and totals over the actual elapsed time
+ * when stopped. A toy registers a meter per kind of operation, each worker thread records into its own
+ * recorder of the meter, so recording never contends with other workers or with this reporter.
+ */
+@ThreadSafe
+public final class IntervalReporter {
+
+  private static final Logger LOG = Logger.getLogger(IntervalReporter.class.getName());
+
+  private final String name;
+  private final long interval_ms;
+  private final long highest_trackable_value;
+  private final int significant_digits;
+  private final List<Meter> meters = new CopyOnWriteArrayList<>();
+
+  private ScheduledExecutorService executor;
+  private long start_ns;
+  private long last_ns;
+  private long stop_ns;
+
+  /**
+   * @param name name shown in reports, usually the toy's
+   * @param interval_ms report interval, no interval report if not positive
+   * @param highest_trackable_value highest latency recorders track
+   * @param significant_digits precision of recorders
+   */
+  public IntervalReporter(String name, long interval_ms, long highest_trackable_value, int significant_digits) {
+    this.name = name;
+    this.interval_ms = interval_ms;
+    this.highest_trackable_value = highest_trackable_value;
+    this.significant_digits = significant_digits;
+  }
+
+  public Meter register(String meter_name) {
+    Meter meter = new Meter(meter_name);
+    meters.add(meter);
+    return meter;
+  }
+
+  public synchronized void start() {
+    if (executor != null) {
+      throw new IllegalStateException(name + " reporter is already started");
+    }
+    start_ns = last_ns = System.nanoTime();
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, name + "-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (interval_ms > 0) {
+      executor.scheduleAtFixedRate(this::report, interval_ms, interval_ms, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stop reporting, collect what is recorded since last interval and print totals.
+   */
+  public void stop() throws InterruptedException {
+    ScheduledExecutorService service;
+    synchronized (this) {
+      service = executor;
+      if (service == null) {
+        return;
+      }
+      executor = null;
+    }
+    service.shutdown();
+    service.awaitTermination(interval_ms + TimeUnit.SECONDS.toMillis(30), TimeUnit.MILLISECONDS);
+    synchronized (this) {
+      stop_ns = System.nanoTime();
+      collect(stop_ns);
+      double elapsed_sec = elapsedSeconds();
+      for (Meter meter : meters) {
+        LOG.info(String.format("[%s] %s total in %.1f sec: %d ops, %.1f ops/sec, %.2f MB/sec, %d errors, %s",
+            name, meter.name, elapsed_sec, meter.total.getTotalCount(), meter.total.getTotalCount() / elapsed_sec,
+            meter.total_bytes / elapsed_sec / Constants.ONE_MB, meter.total_errors,
+            meter.total.toPercentileString()));
+      }
+    }
+  }
+
+  /**
+   * @return seconds between start and stop, or until now if not stopped yet
+   */
+  public synchronized double elapsedSeconds() {
+    long end = executor == null && stop_ns != 0 ? stop_ns : System.nanoTime();
+    return (end - start_ns) / 1e9;
+  }
+
+  private synchronized void report() {
+    long now = System.nanoTime();
+    double interval_sec = (now - last_ns) / 1e9;
+    collect(now);
+    for (Meter meter : meters) {
+      LOG.info(String.format("[%s] %s in last %.1f sec: %.1f ops/sec, %.2f MB/sec, %d errors, %s",
+          name, meter.name, interval_sec, meter.interval.getTotalCount() / interval_sec,
+          meter.interval_bytes / interval_sec / Constants.ONE_MB, meter.interval_errors,
+          meter.interval.toPercentileString()));
+    }
+  }
+
+  private void collect(long now) {
+    last_ns = now;
+    for (Meter meter : meters) {
+      meter.collect();
+    }
+  }
+
+  /**
+   * Counters of a kind of operation. Interval and total figures are only touched by the reporter.
+   */
+  public final class Meter {
+
+    private final String name;
+    private final List<LatencyRecorder> recorders = new CopyOnWriteArrayList<>();
+    private final LatencyHistogram interval;
+    private final LatencyHistogram total;
+    private long interval_bytes;
+    private long interval_errors;
+    private long total_bytes;
+    private long total_errors;
+
+    private Meter(String name) {
+      this.name = name;
+      this.interval = new LatencyHistogram(highest_trackable_value, significant_digits);
+      this.total = new LatencyHistogram(highest_trackable_value, significant_digits);
+    }
+
+    /**
+     * @return a recorder for a worker thread to record into
+     */
+    public LatencyRecorder newRecorder() {
+      LatencyRecorder recorder = new LatencyRecorder(highest_trackable_value, significant_digits);
+      recorders.add(recorder);
+      return recorder;
+    }
+
+    private void collect() {
+      interval.reset();
+      interval_bytes = 0;
+      interval_errors = 0;
+      for (LatencyRecorder recorder : recorders) {
+        LatencyRecorder.Interval finished = recorder.flip();
+        interval.add(finished.histogram());
+        interval_bytes += finished.bytes();
+        interval_errors += finished.errors();
+      }
+      total.add(interval);
+      total_bytes += interval_bytes;
+      total_errors += interval_errors;
+    }
+
+  }
+
+}
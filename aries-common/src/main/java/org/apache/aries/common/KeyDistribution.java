@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.aries.annotation.ThreadSafe;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distribution of key indexes. Implementations hold no lock, randomness comes from caller's own random,
+ * so one instance can be shared by all workers.
+ */
+@ThreadSafe
+public interface KeyDistribution {
+
+  enum TYPE {
+    RANDOM, SEQUENTIAL, UNIFORM, ZIPFIAN, SCRAMBLED_ZIPFIAN, LATEST, HOTSPOT
+  }
+
+  /**
+   * @param random caller's random, usually a per thread one
+   * @return next key index
+   */
+  long next(SplittableRandom random);
+
+  /**
+   * FNV-1a 64 hash, for scattering an index.
+   * @param index index to be hashed
+   * @return non-negative hash value
+   */
+  static long scramble(long index) {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < 8; i++) {
+      hash ^= index & 0xff;
+      hash *= 0x100000001B3L;
+      index >>>= 8;
+    }
+    return hash & Long.MAX_VALUE;
+  }
+
+  /**
+   * 0, 1, 2, ...
+   */
+  final class Sequential implements KeyDistribution {
+
+    private final AtomicLong counter;
+
+    public Sequential(long start) {
+      counter = new AtomicLong(start);
+    }
+
+    @Override public long next(SplittableRandom random) {
+      return counter.getAndIncrement();
+    }
+
+    /**
+     * @return the last index handed out, -1 if none
+     */
+    public long last() {
+      return counter.get() - 1;
+    }
+
+  }
+
+  /**
+   * Uniform in [0, items).
+   */
+  final class Uniform implements KeyDistribution {
+
+    private final long items;
+
+    public Uniform(long items) {
+      this.items = items;
+    }
+
+    @Override public long next(SplittableRandom random) {
+      return random.nextLong(items);
+    }
+
+  }
+
+  /**
+   * Zipfian in [0, items), 0 is the most popular one. It is the algorithm from Gray et al, "Quickly Generating
+   * Billion-Record Synthetic Databases", also used by YCSB. Theta must be in (0, 1).
+   */
+  final class Zipfian implements KeyDistribution {
+
+    // Zeta is summed exactly up to this, the rest is integrated, so large item counts build quickly.
+    private static final long EXACT_ZETA_TERMS = 1_000_000;
+
+    private final long items;
+    private final double theta;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double half_pow_theta;
+
+    public Zipfian(long items, double theta) {
+      if (items < 1) {
+        throw new IllegalArgumentException("Items must be positive");
+      }
+      if (theta <= 0 || theta >= 1) {
+        throw new IllegalArgumentException("Zipfian theta must be in (0, 1)");
+      }
+      this.items = items;
+      this.theta = theta;
+      this.zetan = zeta(items, theta);
+      this.alpha = 1.0 / (1.0 - theta);
+      this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+      this.half_pow_theta = 1 + Math.pow(0.5, theta);
+    }
+
+    @Override public long next(SplittableRandom random) {
+      double u = random.nextDouble();
+      double uz = u * zetan;
+      if (uz < 1) return 0;
+      if (uz < half_pow_theta) return Math.min(1, items - 1);
+      long ret = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+      return Math.min(ret, items - 1);
+    }
+
+    public long items() {
+      return items;
+    }
+
+    static double zeta(long n, double theta) {
+      double sum = 0;
+      long exact = Math.min(n, EXACT_ZETA_TERMS);
+      for (long i = 1; i <= exact; i++) {
+        sum += 1 / Math.pow(i, theta);
+      }
+      if (n > exact) {
+        // Midpoint rule: sum of i^-theta over (exact, n] ~ integral of x^-theta over [exact + 0.5, n + 0.5]
+        double power = 1 - theta;
+        sum += (Math.pow(n + 0.5, power) - Math.pow(exact + 0.5, power)) / power;
+      }
+      return sum;
+    }
+
+  }
+
+  /**
+   * Zipfian popularity, but popular indexes are scattered over [0, items) instead of crowding at the beginning.
+   */
+  final class ScrambledZipfian implements KeyDistribution {
+
+    private final Zipfian zipfian;
+
+    public ScrambledZipfian(long items, double theta) {
+      zipfian = new Zipfian(items, theta);
+    }
+
+    @Override public long next(SplittableRandom random) {
+      return scramble(zipfian.next(random)) % zipfian.items();
+    }
+
+  }
+
+  /**
+   * Skewed towards the most recent index of a sequence, with zipfian distance to it.
+   * If it advances the sequence, every call moves the head forward, like time series writes;
+   * otherwise it only follows the head moved by someone else, like reads of recently inserted records.
+   */
+  final class Latest implements KeyDistribution {
+
+    private final Sequential sequence;
+    private final Zipfian distance;
+    private final boolean advance;
+
+    public Latest(Sequential sequence, long window, double theta, boolean advance) {
+      this.sequence = sequence;
+      this.distance = new Zipfian(window, theta);
+      this.advance = advance;
+    }
+
+    @Override public long next(SplittableRandom random) {
+      long head = advance ? sequence.next(random) : sequence.last();
+      if (head < 0) {
+        return 0;
+      }
+      long offset = distance.next(random);
+      return head >= offset ? head - offset : offset % (head + 1);
+    }
+
+  }
+
+  /**
+   * A fraction of operations go to a contiguous hot set at the beginning of [0, items), the rest go to cold set.
+   * Both are uniform inside.
+   */
+  final class Hotspot implements KeyDistribution {
+
+    private final long items;
+    private final long hot_items;
+    private final double hot_op_fraction;
+
+    public Hotspot(long items, double hot_data_fraction, double hot_op_fraction) {
+      if (hot_data_fraction <= 0 || hot_data_fraction > 1 || hot_op_fraction < 0 || hot_op_fraction > 1) {
+        throw new IllegalArgumentException("Hotspot fractions must be in (0, 1]");
+      }
+      this.items = items;
+      this.hot_items = Math.max(1, (long) (items * hot_data_fraction));
+      this.hot_op_fraction = hot_op_fraction;
+    }
+
+    @Override public long next(SplittableRandom random) {
+      if (hot_items == items || random.nextDouble() < hot_op_fraction) {
+        return random.nextLong(hot_items);
+      }
+      return hot_items + random.nextLong(items - hot_items);
+    }
+
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+/**
+ * Renders a key into a reused byte array as [prefix][body]. Body is the zero-padded decimal index,
+ * so keys sort in index order. Prefix is optional, it is a bucket in the same radix as the HEX and DEC
+ * split algorithms of CreateTable, so keys spread over pre-split regions. It is not thread-safe.
+ */
+public final class KeyFormatter {
+
+  /**
+   * HEX prefix covers 00-ff, DEC prefix covers 000-999, both match every split key those algorithms produce.
+   */
+  public enum PREFIX {
+    NONE(0, 1, 10), HEX(2, 256, 16), DEC(3, 1000, 10);
+
+    private final int length;
+    private final int buckets;
+    private final int radix;
+
+    PREFIX(int length, int buckets, int radix) {
+      this.length = length;
+      this.buckets = buckets;
+      this.radix = radix;
+    }
+  }
+
+  private static final byte[] DIGITS = "0123456789abcdef".getBytes();
+
+  private final PREFIX prefix;
+  private final int body_length;
+  private final long body_modulus;
+  private final byte[] key;
+
+  public KeyFormatter(PREFIX prefix, int body_length) {
+    this.prefix = prefix;
+    this.body_length = body_length;
+    this.body_modulus = body_length >= 19 ? Long.MAX_VALUE : (long) Math.pow(10, body_length);
+    this.key = new byte[prefix.length + body_length];
+  }
+
+  /**
+   * Index is wrapped if it has more digits than body length.
+   * @param index a non-negative key index
+   * @return key of index, the prefix bucket is derived from the index, so a key always lands in the same region
+   */
+  public byte[] format(long index) {
+    writePrefix(KeyDistribution.scramble(index));
+    long body = index % body_modulus;
+    for (int i = key.length - 1; i >= prefix.length; i--) {
+      key[i] = DIGITS[(int) (body % 10)];
+      body /= 10;
+    }
+    return key;
+  }
+
+  /**
+   * @param generator generator whose random is used
+   * @return key with a random prefix bucket and random alphanumeric body
+   */
+  public byte[] random(DataGenerator generator) {
+    writePrefix(generator.random().nextLong() & Long.MAX_VALUE);
+    generator.fillAlphanumeric(key, prefix.length, body_length);
+    return key;
+  }
+
+  /**
+   * @return total key length, including prefix
+   */
+  public int length() {
+    return key.length;
+  }
+
+  /**
+   * @return how many keys body can represent without wrapping
+   */
+  public long capacity() {
+    return body_modulus;
+  }
+
+  private void writePrefix(long hash) {
+    int bucket = (int) (hash % prefix.buckets);
+    for (int i = prefix.length - 1; i >= 0; i--) {
+      key[i] = DIGITS[bucket % prefix.radix];
+      bucket /= prefix.radix;
+    }
+  }
+
+}
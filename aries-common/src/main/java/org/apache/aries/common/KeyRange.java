@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A row key range [start, end) like a region's, empty end means no upper bound.
+ * It places generated key bodies inside the range, for writers pinned to regions.
+ */
+public final class KeyRange {
+
+  private final byte[] start;
+  private final byte[] end;
+
+  public KeyRange(byte[] start, byte[] end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  public byte[] getStart() {
+    return start;
+  }
+
+  public byte[] getEnd() {
+    return end;
+  }
+
+  public boolean contains(byte[] key) {
+    return Bytes.compareTo(key, start) >= 0 && (end.length == 0 || Bytes.compareTo(key, end) < 0);
+  }
+
+  /**
+   * Key is start + body if it is below end. Otherwise end extends start, and body is appended to
+   * the longest prefix of end with its last byte decremented, which still sorts within the range.
+   * @param body generated key body, it is not retained
+   * @return a new key in this range
+   */
+  public byte[] place(byte[] body) {
+    byte[] key = Bytes.add(start, body);
+    if (end.length == 0 || Bytes.compareTo(key, end) < 0) {
+      return key;
+    }
+    for (int i = end.length - 1; i >= start.length; i--) {
+      if (end[i] != 0) {
+        byte[] prefix = Bytes.copy(end, 0, i + 1);
+        prefix[i]--;
+        return Bytes.add(prefix, body);
+      }
+    }
+    // End is start followed by zeros only, the largest proper prefix of end is the best left
+    return Bytes.copy(end, 0, end.length - 1);
+  }
+
+  @Override
+  public String toString() {
+    return "[" + Bytes.toStringBinary(start) + ", " + Bytes.toStringBinary(end) + ")";
+  }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * A log-linear histogram in the style of HdrHistogram. All counters are pre-allocated at construction,
+ * so recording a value never allocates. It is not thread-safe, each thread should own one and
+ * {@link #add(LatencyHistogram)} them together when done.
+ * Values are unit-less, callers decide the unit (toys in this project record microseconds).
+ */
+public final class LatencyHistogram {
+
+  private final long highest_trackable_value;
+  private final int significant_digits;
+  private final int sub_bucket_half_count_magnitude;
+  private final int sub_bucket_half_count;
+  private final long sub_bucket_mask;
+  private final int leading_zero_count_base;
+  private final long[] counts;
+
+  private long total_count;
+  private long total_sum;
+  private long min = Long.MAX_VALUE;
+  private long max = 0;
+
+  /**
+   * @param highest_trackable_value values larger than this are clamped to it
+   * @param significant_digits value precision to keep, from 1 to 5
+   */
+  public LatencyHistogram(long highest_trackable_value, int significant_digits) {
+    if (highest_trackable_value < 2) {
+      throw new IllegalArgumentException("Highest trackable value must be larger than 1");
+    }
+    if (significant_digits < 1 || significant_digits > 5) {
+      throw new IllegalArgumentException("Significant digits must be in [1, 5]");
+    }
+    this.highest_trackable_value = highest_trackable_value;
+    this.significant_digits = significant_digits;
+
+    long largest_value_with_single_unit_resolution = 2 * (long) Math.pow(10, significant_digits);
+    int sub_bucket_count_magnitude = (int) Math.ceil(Math.log(largest_value_with_single_unit_resolution) / Math.log(2));
+    sub_bucket_half_count_magnitude = Math.max(sub_bucket_count_magnitude, 1) - 1;
+    int sub_bucket_count = 1 << (sub_bucket_half_count_magnitude + 1);
+    sub_bucket_half_count = sub_bucket_count / 2;
+    sub_bucket_mask = sub_bucket_count - 1;
+    leading_zero_count_base = 64 - sub_bucket_half_count_magnitude - 1;
+
+    long smallest_untrackable_value = sub_bucket_count;
+    int buckets_needed = 1;
+    while (smallest_untrackable_value <= highest_trackable_value) {
+      if (smallest_untrackable_value > Long.MAX_VALUE / 2) {
+        buckets_needed++;
+        break;
+      }
+      smallest_untrackable_value <<= 1;
+      buckets_needed++;
+    }
+    counts = new long[(buckets_needed + 1) * sub_bucket_half_count];
+  }
+
+  /**
+   * Record a value, negative values are treated as 0 and oversized values are clamped.
+   * @param value value to be recorded
+   */
+  public void record(long value) {
+    long v = value < 0 ? 0 : Math.min(value, highest_trackable_value);
+    counts[countsIndexOf(v)]++;
+    total_count++;
+    total_sum += v;
+    if (v < min) min = v;
+    if (v > max) max = v;
+  }
+
+  /**
+   * Merge other histogram into this one. Both must be created with same parameters.
+   * @param other histogram to be merged
+   */
+  public void add(LatencyHistogram other) {
+    if (other.counts.length != counts.length || other.significant_digits != significant_digits) {
+      throw new IllegalArgumentException("Histograms are not compatible");
+    }
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    total_count += other.total_count;
+    total_sum += other.total_sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  public void reset() {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = 0;
+    }
+    total_count = 0;
+    total_sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  public long getTotalCount() {
+    return total_count;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public long getMin() {
+    return total_count == 0 ? 0 : min;
+  }
+
+  public double getMean() {
+    return total_count == 0 ? 0 : (double) total_sum / total_count;
+  }
+
+  /**
+   * Value at given percentile, the result is the highest value equivalent to the bucket.
+   * @param percentile in range of [0, 100]
+   * @return value at percentile
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (total_count == 0) {
+      return 0;
+    }
+    double p = Math.min(Math.max(percentile, 0), 100);
+    long count_at_percentile = Math.max((long) Math.ceil(p / 100 * total_count), 1);
+    long running = 0;
+    for (int i = 0; i < counts.length; i++) {
+      running += counts[i];
+      if (running >= count_at_percentile) {
+        return Math.min(highestEquivalentValue(valueFromIndex(i)), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * @return a one line summary, like count=10, mean=1.00, p50=1, p90=1, p99=1, p99.9=1, max=1
+   */
+  public String toPercentileString() {
+    return String.format(Locale.ROOT, "count=%d, mean=%.2f, p50=%d, p90=%d, p99=%d, p99.9=%d, max=%d",
+        total_count, getMean(),
+        getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99),
+        getValueAtPercentile(99.9), getMax());
+  }
+
+  /**
+   * Print out percentile distribution in the same text format as HdrHistogram's outputPercentileDistribution,
+   * so that the output of different runs can be compared or plotted with the same tools.
+   * @param out output stream
+   * @param ticks_per_half_distance number of reporting points per exponentially decreasing half-distance
+   * @param unit_scale value will be divided by it when printing
+   */
+  public void outputPercentileDistribution(PrintStream out, int ticks_per_half_distance, double unit_scale) {
+    out.println(String.format(Locale.ROOT, "%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+    if (total_count == 0) {
+      return;
+    }
+    double percentile = 0;
+    double half_distance = 50;
+    while (true) {
+      long value = getValueAtPercentile(percentile);
+      long count = countAtOrBelow(value);
+      double reported = 100.0 * count / total_count;
+      if (reported >= 100) {
+        out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d", value / unit_scale, 1.0, total_count));
+        break;
+      }
+      out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d %14.2f",
+          value / unit_scale, reported / 100, count, 1 / (1 - reported / 100)));
+      // Like HdrHistogram, step in ticks, and halve the step every time we cross half of remaining distance.
+      percentile = Math.max(percentile + half_distance / ticks_per_half_distance, reported);
+      while (percentile >= 100 - half_distance && half_distance > 1e-9) {
+        half_distance /= 2;
+      }
+    }
+    out.println(String.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]", getMean() / unit_scale, stdDeviation() / unit_scale));
+    out.println(String.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]", max / unit_scale, total_count));
+    out.println(String.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]", counts.length / sub_bucket_half_count - 1, sub_bucket_half_count * 2));
+  }
+
+  /**
+   * Write percentile distribution to a file, an existing file will be overwritten.
+   * @param file target file
+   * @param unit_scale value will be divided by it when printing
+   * @throws IOException if file can't be written
+   */
+  public void writeTo(Path file, double unit_scale) throws IOException {
+    try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+      outputPercentileDistribution(out, 5, unit_scale);
+    }
+  }
+
+  private long countAtOrBelow(long value) {
+    int index = countsIndexOf(Math.min(value, highest_trackable_value));
+    long count = 0;
+    for (int i = 0; i <= index; i++) {
+      count += counts[i];
+    }
+    return count;
+  }
+
+  private double stdDeviation() {
+    if (total_count == 0) {
+      return 0;
+    }
+    double mean = getMean();
+    double geometric_deviation_total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0) continue;
+      double deviation = medianEquivalentValue(valueFromIndex(i)) - mean;
+      geometric_deviation_total += deviation * deviation * counts[i];
+    }
+    return Math.sqrt(geometric_deviation_total / total_count);
+  }
+
+  private int countsIndexOf(long value) {
+    int bucket_index = leading_zero_count_base - Long.numberOfLeadingZeros(value | sub_bucket_mask);
+    int sub_bucket_index = (int) (value >>> bucket_index);
+    return ((bucket_index + 1) << sub_bucket_half_count_magnitude) + (sub_bucket_index - sub_bucket_half_count);
+  }
+
+  private long valueFromIndex(int index) {
+    int bucket_index = (index >> sub_bucket_half_count_magnitude) - 1;
+    int sub_bucket_index = (index & (sub_bucket_half_count - 1)) + sub_bucket_half_count;
+    if (bucket_index < 0) {
+      sub_bucket_index -= sub_bucket_half_count;
+      bucket_index = 0;
+    }
+    return ((long) sub_bucket_index) << bucket_index;
+  }
+
+  private long sizeOfEquivalentValueRange(long value) {
+    int bucket_index = leading_zero_count_base - Long.numberOfLeadingZeros(value | sub_bucket_mask);
+    return 1L << bucket_index;
+  }
+
+  private long highestEquivalentValue(long value) {
+    return value + sizeOfEquivalentValueRange(value) - 1;
+  }
+
+  private long medianEquivalentValue(long value) {
+    return value + (sizeOfEquivalentValueRange(value) >> 1);
+  }
+
+}
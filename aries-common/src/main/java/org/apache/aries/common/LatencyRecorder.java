@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.aries.annotation.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records latencies, bytes and errors of an interval, while a reader flips intervals out of it without blocking writers.
+ * It uses the writer-reader phaser idea of HdrHistogram's Recorder: writers only bump an epoch counter, the reader
+ * swaps the active interval and waits for writers still on the old one. It is meant to be written by one thread,
+ * so epoch counters are not contended.
+ */
+@ThreadSafe
+public final class LatencyRecorder {
+
+  private final AtomicLong start_epoch = new AtomicLong(0);
+  private final AtomicLong even_end_epoch = new AtomicLong(0);
+  private final AtomicLong odd_end_epoch = new AtomicLong(Long.MIN_VALUE);
+
+  private volatile Interval active;
+  private Interval inactive;
+
+  public LatencyRecorder(long highest_trackable_value, int significant_digits) {
+    active = new Interval(highest_trackable_value, significant_digits);
+    inactive = new Interval(highest_trackable_value, significant_digits);
+  }
+
+  /**
+   * @param latency latency of an operation
+   * @param bytes bytes the operation carried
+   */
+  public void record(long latency, long bytes) {
+    long critical = start_epoch.getAndIncrement();
+    try {
+      Interval interval = active;
+      interval.histogram.record(latency);
+      interval.bytes += bytes;
+    } finally {
+      (critical < 0 ? odd_end_epoch : even_end_epoch).getAndIncrement();
+    }
+  }
+
+  public void error() {
+    long critical = start_epoch.getAndIncrement();
+    try {
+      active.errors++;
+    } finally {
+      (critical < 0 ? odd_end_epoch : even_end_epoch).getAndIncrement();
+    }
+  }
+
+  /**
+   * Start a new interval, and return the one just finished.
+   * The returned interval is valid until next call of flip.
+   * @return interval finished
+   */
+  public synchronized Interval flip() {
+    inactive.reset();
+    Interval finished = active;
+    active = inactive;
+    inactive = finished;
+
+    boolean next_phase_is_even = start_epoch.get() < 0;
+    long initial_start_value = next_phase_is_even ? 0 : Long.MIN_VALUE;
+    (next_phase_is_even ? even_end_epoch : odd_end_epoch).lazySet(initial_start_value);
+    long start_value_at_flip = start_epoch.getAndSet(initial_start_value);
+    // Wait for writers who entered before the flip, they may still be writing the finished interval.
+    while ((next_phase_is_even ? odd_end_epoch : even_end_epoch).get() != start_value_at_flip) {
+      Thread.yield();
+    }
+    return finished;
+  }
+
+  public static final class Interval {
+
+    private final LatencyHistogram histogram;
+    private long bytes;
+    private long errors;
+
+    private Interval(long highest_trackable_value, int significant_digits) {
+      histogram = new LatencyHistogram(highest_trackable_value, significant_digits);
+    }
+
+    public LatencyHistogram histogram() {
+      return histogram;
+    }
+
+    public long bytes() {
+      return bytes;
+    }
+
+    public long errors() {
+      return errors;
+    }
+
+    private void reset() {
+      histogram.reset();
+      bytes = 0;
+      errors = 0;
+    }
+
+  }
+
+}
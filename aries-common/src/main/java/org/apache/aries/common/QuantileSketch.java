@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Approximates quantiles of a stream in bounded memory, with a stack of compactors as in KLL sketch.
+ * Items of level h weigh 2^h. Once a level holds k items, it is sorted and every other item, from a random
+ * offset, is promoted to the next level. Memory is k * log2(n / k) items, rank error is about log2(n / k) / k.
+ * It is not thread-safe.
+ */
+public final class QuantileSketch<T> {
+
+  private final int k;
+  private final Comparator<? super T> comparator;
+  private final SplittableRandom random;
+  private final List<List<T>> levels = new ArrayList<>();
+  private long count;
+
+  /**
+   * @param k capacity of a level, larger is more accurate
+   * @param comparator order of items
+   * @param seed seed of compaction offsets, so a sketch of the same stream is reproducible
+   */
+  public QuantileSketch(int k, Comparator<? super T> comparator, long seed) {
+    if (k < 2) {
+      throw new IllegalArgumentException("Capacity of a level should be at least 2, but got " + k);
+    }
+    this.k = k;
+    this.comparator = comparator;
+    this.random = new SplittableRandom(seed);
+    levels.add(new ArrayList<>(k));
+  }
+
+  public void update(T item) {
+    count++;
+    levels.get(0).add(item);
+    for (int h = 0; h < levels.size() && levels.get(h).size() >= k; h++) {
+      compact(h);
+    }
+  }
+
+  private void compact(int h) {
+    if (h + 1 == levels.size()) {
+      levels.add(new ArrayList<>(k));
+    }
+    List<T> level = levels.get(h);
+    level.sort(comparator);
+    List<T> next = levels.get(h + 1);
+    for (int i = random.nextInt(2); i < level.size(); i += 2) {
+      next.add(level.get(i));
+    }
+    level.clear();
+  }
+
+  /**
+   * @return number of items updated
+   */
+  public long count() {
+    return count;
+  }
+
+  /**
+   * @return number of items retained
+   */
+  public int retained() {
+    int retained = 0;
+    for (List<T> level : levels) {
+      retained += level.size();
+    }
+    return retained;
+  }
+
+  /**
+   * @param fractions ascending fractions in [0, 1]
+   * @return an item at each fraction of rank, empty if nothing is updated
+   */
+  public List<T> quantiles(double[] fractions) {
+    List<T> items = new ArrayList<>(retained());
+    List<Long> weights = new ArrayList<>(retained());
+    long total = 0;
+    for (int h = 0; h < levels.size(); h++) {
+      for (T item : levels.get(h)) {
+        items.add(item);
+        weights.add(1L << h);
+        total += 1L << h;
+      }
+    }
+    List<T> result = new ArrayList<>(fractions.length);
+    if (items.isEmpty()) {
+      return result;
+    }
+    Integer[] order = new Integer[items.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> comparator.compare(items.get(a), items.get(b)));
+    long cumulative = 0;
+    int j = 0;
+    for (double fraction : fractions) {
+      double rank = fraction * total;
+      while (j < order.length - 1 && cumulative + weights.get(order[j]) <= rank) {
+        cumulative += weights.get(order[j]);
+        j++;
+      }
+      result.add(items.get(order[j]));
+    }
+    return result;
+  }
+
+}
@@ -18,6 +18,7 @@ package org.apache.aries.common;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
 
 public final class ToyUtils {
 
@@ -38,9 +39,11 @@ public final class ToyUtils {
 
   public static String RANDOM_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789ABCEDEFGHIJKLMNOPQRSTUVWXYZ";
   public static String generateRandomString(int size) {
-    StringBuilder builder = new StringBuilder();
+    // Math.random() shares one generator across threads, use thread local one instead.
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    StringBuilder builder = new StringBuilder(size);
     for (int i = 0; i < size; i++) {
-      builder.append(RANDOM_CHARS.charAt((int)(Math.random() * RANDOM_CHARS.length())));
+      builder.append(RANDOM_CHARS.charAt(random.nextInt(RANDOM_CHARS.length())));
     }
     return builder.toString();
   }
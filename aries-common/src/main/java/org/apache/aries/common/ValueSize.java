@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.aries.annotation.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Distribution of value sizes in bytes. A size is drawn from 64 random bits, so a size can be
+ * derived from a key as well as from a random stream.
+ */
+@ThreadSafe
+public interface ValueSize {
+
+  enum TYPE {
+    FIXED, UNIFORM, NORMAL, HISTOGRAM
+  }
+
+  /**
+   * @param bits 64 random bits
+   * @return a size in [0, max()]
+   */
+  int next(long bits);
+
+  /**
+   * @return the largest size this may return
+   */
+  int max();
+
+  final class Fixed implements ValueSize {
+
+    private final int size;
+
+    public Fixed(int size) {
+      this.size = size;
+    }
+
+    @Override public int next(long bits) {
+      return size;
+    }
+
+    @Override public int max() {
+      return size;
+    }
+
+  }
+
+  /**
+   * Uniform in [min, max].
+   */
+  final class Uniform implements ValueSize {
+
+    private final int min;
+    private final int max;
+
+    public Uniform(int min, int max) {
+      if (min < 0 || min > max) {
+        throw new IllegalArgumentException("Invalid uniform range [" + min + ", " + max + "]");
+      }
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override public int next(long bits) {
+      return min + (int) ((bits >>> 1) % (max - min + 1));
+    }
+
+    @Override public int max() {
+      return max;
+    }
+
+  }
+
+  /**
+   * Normal of mean and standard deviation, clamped into [0, max].
+   */
+  final class Normal implements ValueSize {
+
+    private static final double TWO_TO_32 = 4294967296.0;
+
+    private final double mean;
+    private final double stddev;
+    private final int max;
+
+    public Normal(double mean, double stddev, int max) {
+      if (mean < 0 || stddev < 0 || max < 0) {
+        throw new IllegalArgumentException("Mean, standard deviation and max of sizes should not be negative");
+      }
+      this.mean = mean;
+      this.stddev = stddev;
+      this.max = max;
+    }
+
+    @Override public int next(long bits) {
+      // Box-Muller, with two 32-bit uniforms, u1 in (0, 1] to keep log finite
+      double u1 = ((bits >>> 32) + 1) / TWO_TO_32;
+      double u2 = (bits & 0xFFFFFFFFL) / TWO_TO_32;
+      double z = Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2);
+      return (int) Math.max(0, Math.min(max, Math.round(mean + stddev * z)));
+    }
+
+    @Override public int max() {
+      return max;
+    }
+
+  }
+
+  /**
+   * Sizes with weights, e.g. taken from HFile statistics of a production table.
+   */
+  final class Histogram implements ValueSize {
+
+    private final int[] sizes;
+    private final double[] cumulative;
+
+    public Histogram(int[] sizes, double[] weights) {
+      if (sizes.length == 0 || sizes.length != weights.length) {
+        throw new IllegalArgumentException("Sizes and weights should be non-empty and of the same length");
+      }
+      this.sizes = sizes;
+      this.cumulative = new double[weights.length];
+      double total = 0;
+      for (int i = 0; i < weights.length; i++) {
+        if (sizes[i] < 0 || weights[i] < 0) {
+          throw new IllegalArgumentException("Size and weight should not be negative");
+        }
+        total += weights[i];
+        cumulative[i] = total;
+      }
+      if (total <= 0) {
+        throw new IllegalArgumentException("At least one weight should be positive");
+      }
+      for (int i = 0; i < cumulative.length; i++) {
+        cumulative[i] /= total;
+      }
+    }
+
+    /**
+     * Each line of file is a size and its weight separated by blanks or a comma, lines start with # are skipped.
+     */
+    public static Histogram load(String file) {
+      List<Integer> sizes = new ArrayList<>();
+      List<Double> weights = new ArrayList<>();
+      try (FileLineIterator lines = new FileLineIterator(file)) {
+        while (lines.hasNext()) {
+          String line = lines.next().trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          String[] fields = line.split("[\\s,]+");
+          if (fields.length != 2) {
+            throw new IllegalArgumentException("Expect 'size weight' but got '" + line + "' in " + file);
+          }
+          sizes.add(Integer.parseInt(fields[0]));
+          weights.add(Double.parseDouble(fields[1]));
+        }
+      }
+      return new Histogram(sizes.stream().mapToInt(s -> s).toArray(), weights.stream().mapToDouble(w -> w).toArray());
+    }
+
+    @Override public int next(long bits) {
+      double u = (bits >>> 11) * 0x1.0p-53;
+      int i = Arrays.binarySearch(cumulative, u);
+      i = i >= 0 ? i + 1 : -i - 1;
+      return sizes[Math.min(i, sizes.length - 1)];
+    }
+
+    @Override public int max() {
+      return Arrays.stream(sizes).max().getAsInt();
+    }
+
+  }
+
+}
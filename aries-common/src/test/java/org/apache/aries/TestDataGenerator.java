@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.DataGenerator;
+import org.apache.aries.common.ToyUtils;
+import org.apache.aries.common.ValueSize;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.SplittableRandom;
+import java.util.zip.Deflater;
+
+public class TestDataGenerator {
+
+  @Test public void testKeyAndValue() {
+    DataGenerator generator = new DataGenerator(10, 22);
+    byte[] key = generator.nextKey();
+    Assert.assertEquals(10, key.length);
+    for (byte b : key) {
+      Assert.assertTrue(ToyUtils.RANDOM_CHARS.indexOf(b) >= 0);
+    }
+    byte[] copy = Arrays.copyOf(key, key.length);
+    // Buffer is reused
+    Assert.assertSame(key, generator.nextKey());
+    Assert.assertFalse(Arrays.equals(copy, key));
+    Assert.assertEquals(22, generator.nextValue().length);
+  }
+
+  @Test public void testEncodedKey() {
+    for (int length = 1; length < 8; length++) {
+      DataGenerator generator = new DataGenerator(length, 1);
+      byte[] key = generator.nextKey();
+      String expected = Base64.getEncoder().encodeToString(key);
+      Assert.assertEquals(expected, new String(generator.encodedKey(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test public void testSeeded() {
+    DataGenerator a = new DataGenerator(new SplittableRandom(7), 10, 16);
+    DataGenerator b = new DataGenerator(new SplittableRandom(7), 10, 16);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertArrayEquals(a.nextKey(), b.nextKey());
+    }
+    byte[] key = "0000000042".getBytes(StandardCharsets.UTF_8);
+    byte[] value = Arrays.copyOf(a.valueOf(key, 7), 16);
+    a.nextValue();
+    // Value depends on key and seed only
+    Assert.assertArrayEquals(value, b.valueOf(key, 7));
+    Assert.assertFalse(Arrays.equals(value, b.valueOf(key, 8)));
+    for (byte v : value) {
+      Assert.assertTrue(ToyUtils.RANDOM_CHARS.indexOf(v) >= 0);
+    }
+  }
+
+  @Test public void testValueSize() {
+    SplittableRandom random = new SplittableRandom(1);
+    ValueSize uniform = new ValueSize.Uniform(10, 20);
+    ValueSize normal = new ValueSize.Normal(100, 10, 120);
+    ValueSize histogram = new ValueSize.Histogram(new int[] { 5, 50, 500 }, new double[] { 0, 1, 3 });
+    double sum = 0;
+    int large = 0;
+    for (int i = 0; i < 10000; i++) {
+      int u = uniform.next(random.nextLong());
+      Assert.assertTrue(u >= 10 && u <= 20);
+      int n = normal.next(random.nextLong());
+      Assert.assertTrue(n >= 0 && n <= 120);
+      sum += n;
+      int h = histogram.next(random.nextLong());
+      Assert.assertNotEquals(5, h);
+      large += h == 500 ? 1 : 0;
+    }
+    Assert.assertEquals(100, sum / 10000, 1);
+    Assert.assertEquals(7500, large, 300);
+  }
+
+  @Test public void testCompressionRatio() {
+    DataGenerator generator = new DataGenerator(new SplittableRandom(3), 10, new ValueSize.Fixed(1000), 4);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < 100; i++) {
+      out.write(generator.nextValue(), 0, generator.valueLength());
+    }
+    byte[] raw = out.toByteArray();
+    Deflater deflater = new Deflater();
+    deflater.setInput(raw);
+    deflater.finish();
+    byte[] compressed = new byte[raw.length];
+    int length = deflater.deflate(compressed);
+    double ratio = (double) raw.length / length;
+    Assert.assertTrue("ratio " + ratio, ratio > 3 && ratio < 5);
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.KeyDistribution;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+public class TestKeyDistribution {
+
+  private final SplittableRandom random = new SplittableRandom(42);
+
+  @Test public void testSequential() {
+    KeyDistribution.Sequential sequential = new KeyDistribution.Sequential(5);
+    Assert.assertEquals(4, sequential.last());
+    Assert.assertEquals(5, sequential.next(random));
+    Assert.assertEquals(6, sequential.next(random));
+    Assert.assertEquals(6, sequential.last());
+  }
+
+  @Test public void testUniform() {
+    KeyDistribution uniform = new KeyDistribution.Uniform(10);
+    for (int i = 0; i < 1000; i++) {
+      long v = uniform.next(random);
+      Assert.assertTrue(v >= 0 && v < 10);
+    }
+  }
+
+  @Test public void testZipfian() {
+    long items = 1000;
+    KeyDistribution zipfian = new KeyDistribution.Zipfian(items, 0.99);
+    long[] counts = new long[(int) items];
+    for (int i = 0; i < 100000; i++) {
+      counts[(int) zipfian.next(random)]++;
+    }
+    Assert.assertTrue(counts[0] > counts[1]);
+    Assert.assertTrue(counts[1] > counts[10]);
+    Assert.assertTrue(counts[10] > counts[500]);
+    Assert.assertThrows(IllegalArgumentException.class, () -> new KeyDistribution.Zipfian(items, 1.0));
+    // Large key space is built without summing every term
+    KeyDistribution large = new KeyDistribution.Zipfian(10_000_000_000L, 0.99);
+    Assert.assertTrue(large.next(random) < 10_000_000_000L);
+  }
+
+  @Test public void testLatest() {
+    KeyDistribution.Sequential sequence = new KeyDistribution.Sequential(0);
+    KeyDistribution reader = new KeyDistribution.Latest(sequence, 100, 0.99, false);
+    Assert.assertEquals(0, reader.next(random));
+    KeyDistribution writer = new KeyDistribution.Latest(sequence, 100, 0.99, true);
+    for (int i = 0; i < 1000; i++) {
+      writer.next(random);
+    }
+    Assert.assertEquals(999, sequence.last());
+    for (int i = 0; i < 1000; i++) {
+      long v = reader.next(random);
+      Assert.assertTrue(v >= 0 && v <= 999);
+    }
+  }
+
+  @Test public void testHotspot() {
+    KeyDistribution hotspot = new KeyDistribution.Hotspot(1000, 0.1, 0.9);
+    int hot = 0;
+    for (int i = 0; i < 10000; i++) {
+      hot += hotspot.next(random) < 100 ? 1 : 0;
+    }
+    Assert.assertEquals(9000, hot, 300);
+  }
+
+}
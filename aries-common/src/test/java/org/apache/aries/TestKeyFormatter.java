@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.DataGenerator;
+import org.apache.aries.common.KeyFormatter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+public class TestKeyFormatter {
+
+  private final SplittableRandom random = new SplittableRandom(42);
+
+  @Test public void testFormatter() {
+    KeyFormatter none = new KeyFormatter(KeyFormatter.PREFIX.NONE, 6);
+    Assert.assertEquals("000042", new String(none.format(42), StandardCharsets.UTF_8));
+    Assert.assertEquals(1000000, none.capacity());
+
+    KeyFormatter hex = new KeyFormatter(KeyFormatter.PREFIX.HEX, 4);
+    String key = new String(hex.format(42), StandardCharsets.UTF_8);
+    Assert.assertEquals(6, key.length());
+    Assert.assertTrue(key.substring(0, 2).matches("[0-9a-f]{2}"));
+    Assert.assertEquals("0042", key.substring(2));
+    // Same index, same bucket
+    Assert.assertEquals(key, new String(hex.format(42), StandardCharsets.UTF_8));
+
+    KeyFormatter dec = new KeyFormatter(KeyFormatter.PREFIX.DEC, 4);
+    DataGenerator generator = new DataGenerator(random, dec.length(), 1);
+    key = new String(dec.random(generator), StandardCharsets.UTF_8);
+    Assert.assertTrue(key.substring(0, 3).matches("[0-9]{3}"));
+    Assert.assertEquals(7, key.length());
+  }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.KeyRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class TestKeyRange {
+
+  @Test public void testKeyRange() {
+    byte[] body = "0042".getBytes(StandardCharsets.UTF_8);
+    KeyRange middle = new KeyRange("10".getBytes(StandardCharsets.UTF_8), "20".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals("100042", new String(middle.place(body), StandardCharsets.UTF_8));
+    KeyRange last = new KeyRange("f0".getBytes(StandardCharsets.UTF_8), new byte[0]);
+    Assert.assertEquals("f00042", new String(last.place(body), StandardCharsets.UTF_8));
+    // End extends start, start + body would pass end
+    KeyRange first = new KeyRange(new byte[0], "00".getBytes(StandardCharsets.UTF_8));
+    Assert.assertTrue(first.contains(first.place(body)));
+    KeyRange narrow = new KeyRange("1".getBytes(StandardCharsets.UTF_8), "1\0\1".getBytes(StandardCharsets.UTF_8));
+    Assert.assertTrue(narrow.contains(narrow.place(body)));
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.LatencyHistogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+public class TestLatencyHistogram {
+
+  @Test public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram(3600_000_000L, 3);
+    Assert.assertEquals(0, histogram.getTotalCount());
+    Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+    Assert.assertEquals(0, histogram.getMin());
+    Assert.assertEquals(0, histogram.getMax());
+  }
+
+  @Test public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram(3600_000_000L, 3);
+    for (int i = 1; i <= 10000; i++) {
+      histogram.record(i);
+    }
+    Assert.assertEquals(10000, histogram.getTotalCount());
+    Assert.assertEquals(1, histogram.getMin());
+    Assert.assertEquals(10000, histogram.getMax());
+    Assert.assertEquals(5000.5, histogram.getMean(), 0.001);
+    // 3 significant digits, so error is within 0.1%
+    Assert.assertEquals(5000, histogram.getValueAtPercentile(50), 5);
+    Assert.assertEquals(9900, histogram.getValueAtPercentile(99), 10);
+    Assert.assertEquals(9990, histogram.getValueAtPercentile(99.9), 10);
+    Assert.assertEquals(10000, histogram.getValueAtPercentile(100));
+  }
+
+  @Test public void testClampAndNegative() {
+    LatencyHistogram histogram = new LatencyHistogram(1000, 2);
+    histogram.record(-5);
+    histogram.record(1_000_000);
+    Assert.assertEquals(2, histogram.getTotalCount());
+    Assert.assertEquals(0, histogram.getMin());
+    Assert.assertEquals(1000, histogram.getMax());
+  }
+
+  @Test public void testAdd() {
+    LatencyHistogram a = new LatencyHistogram(3600_000_000L, 3);
+    LatencyHistogram b = new LatencyHistogram(3600_000_000L, 3);
+    for (int i = 0; i < 100; i++) {
+      a.record(10);
+      b.record(1_000_000);
+    }
+    a.add(b);
+    Assert.assertEquals(200, a.getTotalCount());
+    Assert.assertEquals(10, a.getValueAtPercentile(50));
+    Assert.assertEquals(1_000_000, a.getValueAtPercentile(99), 1000);
+    Assert.assertThrows(IllegalArgumentException.class, () -> a.add(new LatencyHistogram(1000, 1)));
+    a.reset();
+    Assert.assertEquals(0, a.getTotalCount());
+  }
+
+  @Test public void testOutputDistribution() {
+    LatencyHistogram histogram = new LatencyHistogram(3600_000_000L, 3);
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    histogram.outputPercentileDistribution(new PrintStream(bytes), 5, 1.0);
+    String output = bytes.toString();
+    Assert.assertTrue(output.contains("Percentile"));
+    Assert.assertTrue(output.contains("#[Max     =     1000.000, Total count    =         1000]"));
+  }
+
+}
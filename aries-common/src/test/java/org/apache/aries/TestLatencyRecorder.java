@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.LatencyRecorder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestLatencyRecorder {
+
+  @Test public void testFlip() {
+    LatencyRecorder recorder = new LatencyRecorder(1_000_000, 3);
+    recorder.record(100, 10);
+    recorder.record(200, 20);
+    recorder.error();
+    LatencyRecorder.Interval interval = recorder.flip();
+    Assert.assertEquals(2, interval.histogram().getTotalCount());
+    Assert.assertEquals(30, interval.bytes());
+    Assert.assertEquals(1, interval.errors());
+
+    recorder.record(300, 5);
+    interval = recorder.flip();
+    Assert.assertEquals(1, interval.histogram().getTotalCount());
+    Assert.assertEquals(300, interval.histogram().getMax(), 1);
+    Assert.assertEquals(5, interval.bytes());
+    Assert.assertEquals(0, interval.errors());
+  }
+
+  @Test public void testConcurrentWriter() throws Exception {
+    LatencyRecorder recorder = new LatencyRecorder(1_000_000, 3);
+    AtomicBoolean running = new AtomicBoolean(true);
+    long[] written = new long[1];
+    Thread writer = new Thread(() -> {
+      while (running.get()) {
+        recorder.record(written[0] % 1000, 1);
+        written[0]++;
+      }
+    });
+    writer.start();
+    long total = 0;
+    for (int i = 0; i < 100; i++) {
+      LatencyRecorder.Interval interval = recorder.flip();
+      Assert.assertEquals(interval.bytes(), interval.histogram().getTotalCount());
+      total += interval.bytes();
+    }
+    running.set(false);
+    writer.join();
+    total += recorder.flip().bytes();
+    // Nothing is lost or counted twice across flips
+    Assert.assertEquals(written[0], total);
+  }
+
+}
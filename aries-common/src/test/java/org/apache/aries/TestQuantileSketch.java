@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.QuantileSketch;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+public class TestQuantileSketch {
+
+  @Test public void testQuantileSketch() {
+    QuantileSketch<Long> sketch = new QuantileSketch<>(256, Comparator.naturalOrder(), 0);
+    SplittableRandom random = new SplittableRandom(0);
+    int n = 1_000_000;
+    for (int i = 0; i < n; i++) {
+      // Skewed, half of keys are below n / 10
+      sketch.update(random.nextBoolean() ? random.nextLong(n / 10) : random.nextLong(n));
+    }
+    Assert.assertEquals(n, sketch.count());
+    Assert.assertTrue(sketch.retained() < 256 * 16);
+    List<Long> quantiles = sketch.quantiles(new double[] { 0.25, 0.5, 0.75 });
+    Assert.assertEquals(3, quantiles.size());
+    // Below n / 10 the cdf is 5.5 * x / n, above it is 0.5 + 0.5 * x / n
+    Assert.assertEquals(n * 0.25 / 5.5, quantiles.get(0), n * 0.005);
+    Assert.assertEquals(n * 0.5 / 5.5, quantiles.get(1), n * 0.005);
+    Assert.assertEquals(n / 2.0, quantiles.get(2), n * 0.02);
+  }
+
+}
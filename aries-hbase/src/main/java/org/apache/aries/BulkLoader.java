@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.BoolParameter;
+import org.apache.aries.common.Constants;
+import org.apache.aries.common.DataGenerator;
+import org.apache.aries.common.DoubleParameter;
+import org.apache.aries.common.EnumParameter;
+import org.apache.aries.common.IntParameter;
+import org.apache.aries.common.KeyFormatter;
+import org.apache.aries.common.LongParameter;
+import org.apache.aries.common.Parameter;
+import org.apache.aries.common.StringParameter;
+import org.apache.aries.common.ValueSize;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.TableNotFoundException;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.HStore;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ingest generated rows by bulk load. Threads generate rows in chunks, sort them, and write them into HFiles
+ * split at region boundaries, with compression, encoding and bloom filter of the target family. HFiles of
+ * a thread's chunks are merged per region afterwards, so a region gets at most one HFile per thread, well
+ * under the limit of files per region and family LoadIncrementalHFiles accepts. The HFiles are then loaded by
+ * LoadIncrementalHFiles. Optionally the same rows are put through
+ * BufferedMutator afterwards, so both ways can be compared on the same table.
+ */
+@SuppressWarnings("rawtypes")
+public class BulkLoader extends AbstractHBaseToy {
+
+  private final Parameter<String> table_name =
+      StringParameter.newBuilder("bl.target_table").setRequired()
+                     .setDescription("A table that data will be loaded into").opt();
+  private final Parameter<String> family =
+      StringParameter.newBuilder("bl.target_family").setRequired()
+                     .setDescription("A family of the target table, its settings are applied to HFiles").opt();
+  private final Parameter<String> staging_dir =
+      StringParameter.newBuilder("bl.staging_dir").setRequired()
+                     .setDescription("Directory HFiles are written in, on the file system of the cluster preferably, "
+                         + "a sub directory is created for each run").opt();
+  private final Parameter<Long> rows =
+      LongParameter.newBuilder("bl.rows").setDefaultValue(10_000_000L)
+                   .setDescription("Number of rows generated, keys are zero-padded indexes from 0")
+                   .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> threads =
+      IntParameter.newBuilder("bl.threads").setDefaultValue(4)
+                  .setDescription("Threads generating HFiles, and putting rows in comparison")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> rows_per_chunk =
+      IntParameter.newBuilder("bl.rows_per_chunk").setDefaultValue(500_000)
+                  .setDescription("Rows a thread sorts in memory at a time, HFiles of chunks are merged per region afterwards")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> key_length =
+      IntParameter.newBuilder("bl.key_length").setDefaultValue(Constants.DEFAULT_KEY_LENGTH_PW)
+                  .setDescription("The length of key body in bytes").addConstraint(v -> v > 0).opt();
+  private final Parameter<Enum> key_prefix =
+      EnumParameter.newBuilder("bl.key_prefix", KeyFormatter.PREFIX.NONE, KeyFormatter.PREFIX.class)
+                   .setDescription("Prefix keys with a bucket matching CreateTable's split algorithm, options are: NONE, HEX, DEC").opt();
+  private final Parameter<Integer> value_length =
+      IntParameter.newBuilder("bl.value_length").setDefaultValue(100)
+                  .setDescription("Size of values in bytes").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Double> compression_ratio =
+      DoubleParameter.newBuilder("bl.compression_ratio")
+                     .setDescription("If set, values are generated to compress by about this ratio")
+                     .addConstraint(v -> v >= 1).opt();
+  private final Parameter<Boolean> load =
+      BoolParameter.newBuilder("bl.load", true)
+                   .setDescription("Load HFiles written, otherwise they are left in staging directory").opt();
+  private final Parameter<Boolean> compare_with_puts =
+      BoolParameter.newBuilder("bl.compare_with_puts", false)
+                   .setDescription("Put the same rows through BufferedMutator afterwards, and compare time taken").opt();
+  private final Parameter<Long> buffer_size =
+      LongParameter.newBuilder("bl.buffer_size").setDefaultValue(4 * Constants.ONE_MB)
+                   .setDescription("Write buffer size of BufferedMutator in comparison")
+                   .addConstraint(v -> v > 0).opt();
+
+  private static final byte[] QUALIFIER = Bytes.toBytes("q");
+  private static final String SPILL_DIR = "_spill";
+
+  private Admin admin;
+  private TableName table;
+  private byte[] family_bytes;
+  private HColumnDescriptor column;
+  private byte[][] start_keys;
+  private ExecutorService service;
+  private Path run_dir;
+  private long timestamp;
+  private final AtomicLong generate_ns = new AtomicLong();
+  private final AtomicLong sort_ns = new AtomicLong();
+  private final AtomicLong write_ns = new AtomicLong();
+  private final AtomicLong merge_ns = new AtomicLong();
+  private final AtomicLong hfiles = new AtomicLong();
+  private final AtomicLong hfile_bytes = new AtomicLong();
+
+  @Override
+  protected void requisite(List<Parameter> requisites) {
+    requisites.add(table_name);
+    requisites.add(family);
+    requisites.add(staging_dir);
+    requisites.add(rows);
+    requisites.add(threads);
+    requisites.add(rows_per_chunk);
+    requisites.add(key_length);
+    requisites.add(key_prefix);
+    requisites.add(value_length);
+    requisites.add(compression_ratio);
+    requisites.add(load);
+    requisites.add(compare_with_puts);
+    requisites.add(buffer_size);
+  }
+
+  @Override
+  protected void exampleConfiguration() {
+    example(table_name.key(), "table:for_bulkload");
+    example(family.key(), "f");
+    example(staging_dir.key(), "/tmp/bulkload");
+    example(rows.key(), "100000000");
+    example(threads.key(), "8");
+    example(rows_per_chunk.key(), "500000");
+    example(key_length.key(), "10");
+    example(key_prefix.key(), "HEX");
+    example(value_length.key(), "100");
+    example(compression_ratio.key(), "3");
+    example(load.key(), "true");
+    example(compare_with_puts.key(), "true");
+    example(buffer_size.key(), "4194304");
+  }
+
+  @Override
+  protected void midCheck() {
+    if (rows.value() > new KeyFormatter(KeyFormatter.PREFIX.NONE, key_length.value()).capacity()) {
+      throw new IllegalArgumentException(rows.key() + " doesn't fit in " + key_length.value() + " digits");
+    }
+  }
+
+  @Override
+  protected void buildToy(ToyConfiguration configuration) throws Exception {
+    super.buildToy(configuration);
+    table = TableName.valueOf(table_name.value());
+    admin = connection.getAdmin();
+    if (!admin.tableExists(table)) {
+      throw new TableNotFoundException(table);
+    }
+    family_bytes = Bytes.toBytes(family.value());
+    column = admin.getTableDescriptor(table).getFamily(family_bytes);
+    if (column == null) {
+      throw new IllegalArgumentException("Family " + family.value() + " doesn't exist in " + table);
+    }
+    try (RegionLocator locator = connection.getRegionLocator(table)) {
+      start_keys = locator.getStartKeys();
+    }
+    Arrays.sort(start_keys, Bytes.BYTES_COMPARATOR);
+    timestamp = System.currentTimeMillis();
+    run_dir = new Path(staging_dir.value(), table.getQualifierAsString() + "-" + timestamp);
+    service = Executors.newFixedThreadPool(threads.value());
+    LOG.info("Family " + family.value() + " has compression " + column.getCompressionType() + ", encoding "
+        + column.getDataBlockEncoding() + ", bloom " + column.getBloomFilterType() + ", " + start_keys.length + " regions");
+  }
+
+  @Override
+  protected int haveFun() throws Exception {
+    try {
+      long start = System.nanoTime();
+      runInSlices(this::writeHFiles);
+      // Left over, it would be taken as a family by LoadIncrementalHFiles
+      run_dir.getFileSystem(connection.getConfiguration()).delete(new Path(run_dir, SPILL_DIR), true);
+      double hfile_sec = (System.nanoTime() - start) / 1e9;
+      // Thread times are summed up, so they show the share of each step rather than wall time
+      LOG.info(String.format("Wrote %d HFiles of %.1f MB in %.1f sec, thread time of generate %.1f sec, sort %.1f sec, "
+                             + "write %.1f sec, merge %.1f sec",
+          hfiles.get(), (double) hfile_bytes.get() / Constants.ONE_MB, hfile_sec,
+          generate_ns.get() / 1e9, sort_ns.get() / 1e9, write_ns.get() / 1e9, merge_ns.get() / 1e9));
+      if (!load.value()) {
+        LOG.info("HFiles are left in " + run_dir);
+        return RETURN_CODE.SUCCESS.code();
+      }
+
+      start = System.nanoTime();
+      try (Table t = connection.getTable(table); RegionLocator locator = connection.getRegionLocator(table)) {
+        Configuration load_conf = new Configuration(connection.getConfiguration());
+        // A region has an HFile per slice at most
+        load_conf.setInt(LoadIncrementalHFiles.MAX_FILES_PER_REGION_PER_FAMILY,
+            Math.max(load_conf.getInt(LoadIncrementalHFiles.MAX_FILES_PER_REGION_PER_FAMILY, 32), threads.value()));
+        new LoadIncrementalHFiles(load_conf).doBulkLoad(run_dir, admin, t, locator);
+      }
+      double load_sec = (System.nanoTime() - start) / 1e9;
+      run_dir.getFileSystem(connection.getConfiguration()).delete(run_dir, true);
+      double bulk_sec = hfile_sec + load_sec;
+      LOG.info(String.format("Loaded in %.1f sec, bulk load took %.1f sec in total, %.1f rows/sec",
+          load_sec, bulk_sec, rows.value() / bulk_sec));
+
+      if (compare_with_puts.value()) {
+        start = System.nanoTime();
+        runInSlices(this::put);
+        double put_sec = (System.nanoTime() - start) / 1e9;
+        LOG.info(String.format("Put the same rows in %.1f sec, %.1f rows/sec, bulk load is %.1fx as fast",
+            put_sec, rows.value() / put_sec, put_sec / bulk_sec));
+      }
+    } finally {
+      service.shutdown();
+    }
+    return RETURN_CODE.SUCCESS.code();
+  }
+
+  interface Slice {
+    void run(long from, long to) throws IOException;
+  }
+
+  /**
+   * Split rows into a slice per thread, and wait for all of them.
+   */
+  private void runInSlices(Slice slice) throws Exception {
+    List<Future<?>> futures = new ArrayList<>();
+    long per_thread = (rows.value() + threads.value() - 1) / threads.value();
+    for (long from = 0; from < rows.value(); from += per_thread) {
+      long begin = from;
+      long end = Math.min(rows.value(), from + per_thread);
+      futures.add(service.submit(() -> {
+        slice.run(begin, end);
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  private DataGenerator newGenerator(KeyFormatter formatter) {
+    return new DataGenerator(new SplittableRandom(), formatter.length(), new ValueSize.Fixed(value_length.value()),
+        compression_ratio.empty() ? 0 : compression_ratio.value());
+  }
+
+  /**
+   * Values are derived from keys, so puts in comparison write the same data.
+   */
+  private byte[] valueOf(DataGenerator generator, byte[] key) {
+    return generator.valueOf(key, timestamp);
+  }
+
+  private void writeHFiles(long from, long to) throws IOException {
+    KeyFormatter formatter = new KeyFormatter((KeyFormatter.PREFIX) key_prefix.value(), key_length.value());
+    DataGenerator generator = newGenerator(formatter);
+    // Chunks are spilled out of the family directory, which is what gets loaded
+    Path spill_dir = new Path(new Path(run_dir, SPILL_DIR), String.valueOf(from));
+    Map<Integer, List<Path>> spills = new TreeMap<>();
+    for (long chunk_start = from; chunk_start < to; chunk_start += rows_per_chunk.value()) {
+      long start = System.nanoTime();
+      KeyValue[] chunk = new KeyValue[(int) Math.min(rows_per_chunk.value(), to - chunk_start)];
+      for (int i = 0; i < chunk.length; i++) {
+        byte[] key = formatter.format(chunk_start + i);
+        // KeyValue copies key and value
+        chunk[i] = new KeyValue(key, family_bytes, QUALIFIER, timestamp, valueOf(generator, key));
+      }
+      long generated = System.nanoTime();
+      Arrays.sort(chunk, KeyValue.COMPARATOR);
+      long sorted = System.nanoTime();
+      writeChunk(chunk, spill_dir, spills);
+      long written = System.nanoTime();
+      generate_ns.addAndGet(generated - start);
+      sort_ns.addAndGet(sorted - generated);
+      write_ns.addAndGet(written - sorted);
+    }
+
+    long start = System.nanoTime();
+    FileSystem fs = run_dir.getFileSystem(connection.getConfiguration());
+    Path family_dir = new Path(run_dir, family.value());
+    fs.mkdirs(family_dir);
+    for (List<Path> files : spills.values()) {
+      Path hfile;
+      if (files.size() == 1) {
+        hfile = new Path(family_dir, files.get(0).getName());
+        if (!fs.rename(files.get(0), hfile)) {
+          throw new IOException("Failed to move " + files.get(0) + " to " + family_dir);
+        }
+      } else {
+        hfile = merge(files, family_dir);
+      }
+      hfiles.incrementAndGet();
+      hfile_bytes.addAndGet(fs.getFileStatus(hfile).getLen());
+    }
+    fs.delete(spill_dir, true);
+    merge_ns.addAndGet(System.nanoTime() - start);
+  }
+
+  /**
+   * Write a sorted chunk, rolling to a new HFile whenever a region boundary is crossed,
+   * so LoadIncrementalHFiles never has to split them.
+   * @param spills HFiles written by region index, added to
+   */
+  private void writeChunk(KeyValue[] chunk, Path dir, Map<Integer, List<Path>> spills) throws IOException {
+    StoreFile.Writer writer = null;
+    byte[] region_end = null;
+    try {
+      for (KeyValue kv : chunk) {
+        if (writer == null || (region_end.length > 0 && Bytes.compareTo(kv.getRowArray(), kv.getRowOffset(),
+            kv.getRowLength(), region_end, 0, region_end.length) >= 0)) {
+          close(writer);
+          writer = newWriter(dir);
+          int region = regionOf(kv);
+          spills.computeIfAbsent(region, r -> new ArrayList<>()).add(writer.getPath());
+          region_end = region + 1 < start_keys.length ? start_keys[region + 1] : HConstants.EMPTY_END_ROW;
+        }
+        writer.append(kv);
+      }
+    } finally {
+      close(writer);
+    }
+  }
+
+  /**
+   * Merge sorted HFiles of a region into one.
+   * @return the HFile merged into
+   */
+  private Path merge(List<Path> files, Path dir) throws IOException {
+    Configuration conf = connection.getConfiguration();
+    FileSystem fs = run_dir.getFileSystem(conf);
+    CacheConfig cache_config = noCache(conf);
+    List<HFile.Reader> readers = new ArrayList<>(files.size());
+    PriorityQueue<HFileScanner> heads =
+        new PriorityQueue<>(files.size(), (a, b) -> KeyValue.COMPARATOR.compare(a.getKeyValue(), b.getKeyValue()));
+    StoreFile.Writer writer = null;
+    try {
+      for (Path file : files) {
+        HFile.Reader reader = HFile.createReader(fs, file, cache_config, conf);
+        readers.add(reader);
+        reader.loadFileInfo();
+        HFileScanner scanner = reader.getScanner(false, false);
+        if (scanner.seekTo()) {
+          heads.add(scanner);
+        }
+      }
+      writer = newWriter(dir);
+      while (!heads.isEmpty()) {
+        HFileScanner head = heads.poll();
+        // Cell of a scanner is only valid until it moves on
+        Cell cell = head.getKeyValue();
+        writer.append(cell);
+        if (head.next()) {
+          heads.add(head);
+        }
+      }
+    } finally {
+      close(writer);
+      for (HFile.Reader reader : readers) {
+        reader.close(false);
+      }
+    }
+    for (Path file : files) {
+      fs.delete(file, false);
+    }
+    return writer.getPath();
+  }
+
+  private StoreFile.Writer newWriter(Path dir) throws IOException {
+    Configuration conf = connection.getConfiguration();
+    HFileContext context = new HFileContextBuilder()
+        .withCompression(column.getCompressionType())
+        .withDataBlockEncoding(column.getDataBlockEncoding())
+        .withBlockSize(column.getBlocksize())
+        .withChecksumType(HStore.getChecksumType(conf))
+        .withBytesPerCheckSum(HStore.getBytesPerChecksum(conf))
+        .withIncludesTags(false)
+        .build();
+    return new StoreFile.WriterBuilder(conf, noCache(conf), run_dir.getFileSystem(conf))
+        .withOutputDir(dir)
+        .withBloomType(column.getBloomFilterType())
+        .withComparator(KeyValue.COMPARATOR)
+        .withFileContext(context)
+        .build();
+  }
+
+  private static CacheConfig noCache(Configuration conf) {
+    Configuration no_cache = new Configuration(conf);
+    no_cache.setFloat(HConstants.HFILE_BLOCK_CACHE_SIZE_KEY, 0.0f);
+    return new CacheConfig(no_cache);
+  }
+
+  /**
+   * @return index of the region the cell belongs to
+   */
+  private int regionOf(KeyValue kv) {
+    byte[] row = Bytes.copy(kv.getRowArray(), kv.getRowOffset(), kv.getRowLength());
+    int i = Arrays.binarySearch(start_keys, row, Bytes.BYTES_COMPARATOR);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  private void close(StoreFile.Writer writer) throws IOException {
+    if (writer == null) {
+      return;
+    }
+    // Same file info as HFileOutputFormat2 writes
+    writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+    writer.appendFileInfo(StoreFile.BULKLOAD_TASK_KEY, Bytes.toBytes(getClass().getSimpleName()));
+    writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(true));
+    writer.appendFileInfo(StoreFile.EXCLUDE_FROM_MINOR_COMPACTION_KEY, Bytes.toBytes(false));
+    writer.appendTrackedTimestampsToMetadata();
+    writer.close();
+  }
+
+  private void put(long from, long to) throws IOException {
+    KeyFormatter formatter = new KeyFormatter((KeyFormatter.PREFIX) key_prefix.value(), key_length.value());
+    DataGenerator generator = newGenerator(formatter);
+    BufferedMutatorParams param = new BufferedMutatorParams(table);
+    param.writeBufferSize(buffer_size.value());
+    try (BufferedMutator mutator = connection.getBufferedMutator(param)) {
+      for (long index = from; index < to; index++) {
+        byte[] key = formatter.format(index);
+        Put put = new Put(key);
+        put.addColumn(family_bytes, QUALIFIER, timestamp, valueOf(generator, key));
+        mutator.mutate(put);
+      }
+      mutator.flush();
+    }
+  }
+
+  @Override
+  protected void destroyToy() throws Exception {
+    admin.close();
+    super.destroyToy();
+  }
+
+  @Override protected String getParameterPrefix() {
+    return "bl";
+  }
+
+}
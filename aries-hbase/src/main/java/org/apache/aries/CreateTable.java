@@ -17,25 +17,43 @@
 package org.apache.aries;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.TableExistsException;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.TableSnapshotScanner;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.RandomRowFilter;
 import org.apache.hadoop.hbase.io.compress.Compression;
 import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
 import org.apache.hadoop.hbase.regionserver.BloomType;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.aries.common.BoolParameter;
 import org.apache.aries.common.Constants;
+import org.apache.aries.common.DoubleParameter;
 import org.apache.aries.common.EnumParameter;
+import org.apache.aries.common.FileLineIterator;
 import org.apache.aries.common.IntParameter;
 import org.apache.aries.common.Parameter;
+import org.apache.aries.common.QuantileSketch;
 import org.apache.aries.common.StringArrayParameter;
 import org.apache.aries.common.StringParameter;
 
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.SplittableRandom;
 
 /**
  * A class for creating table.
@@ -50,13 +68,51 @@ public class CreateTable extends AbstractHBaseToy {
                           .addConstraint(v -> v.length >= 1).opt();
   private final Parameter<Enum> split_algorithm =
       EnumParameter.newBuilder("ct.split_algorithm", ALGORITHM.NONE, ALGORITHM.class)
-                   .setRequired().setDescription("Split algorithm, either HEX or DEC").opt();
+                   .setRequired().setDescription("Split algorithm, HEX, DEC, UNIFORM for even binary ranges, SALTED for salt buckets, "
+                                                 + "or SAMPLED which splits at quantiles of sampled keys").opt();
   private final Parameter<Integer> hex_split_regions =
       IntParameter.newBuilder("ct.hex_split_regions").setDescription("Number of regions expecting when using hex split algorithm, upper bound is 256")
                   .addConstraint(v -> v > 1).addConstraint(v -> v <= 256).addConstraint(v -> 256 % v == 0).opt();
   private final Parameter<Integer> dec_split_regions =
       IntParameter.newBuilder("ct.dec_split_regions").setDescription("Number of regions expecting when using number split algorithm, upper bound is 1000")
                   .addConstraint(v -> v > 1).addConstraint(v -> v <= 1000).addConstraint(v -> 1000 % v == 0).opt();
+  private final Parameter<Integer> uniform_split_regions =
+      IntParameter.newBuilder("ct.uniform_split_regions").setDescription("Number of regions expecting when using uniform split algorithm, no upper bound")
+                  .addConstraint(v -> v > 1).opt();
+  private final Parameter<Integer> uniform_key_width =
+      IntParameter.newBuilder("ct.uniform_key_width").setDefaultValue(0)
+                  .setDescription("Bytes of uniform split keys, 0 means the narrowest width telling all regions apart")
+                  .addConstraint(v -> v >= 0).addConstraint(v -> v <= 8).opt();
+  private final Parameter<Integer> salt_buckets =
+      IntParameter.newBuilder("ct.salt_buckets").setDescription("Number of salt buckets, a region per bucket, when using salted split algorithm")
+                  .addConstraint(v -> v > 1).opt();
+  private final Parameter<Integer> salt_width =
+      IntParameter.newBuilder("ct.salt_width").setDefaultValue(0)
+                  .setDescription("Digits of salt prefix, 0 means the narrowest width holding all buckets")
+                  .addConstraint(v -> v >= 0).opt();
+  private final Parameter<Enum> salt_encoding =
+      EnumParameter.newBuilder("ct.salt_encoding", ENCODING.BINARY, ENCODING.class)
+                   .setDescription("Digits of salt prefix, BINARY for raw bytes, DEC or HEX for printable digits").opt();
+  private final Parameter<Integer> sampled_split_regions =
+      IntParameter.newBuilder("ct.sampled_split_regions").setDescription("Number of regions expecting when using sampled split algorithm")
+                  .addConstraint(v -> v > 1).opt();
+  private final Parameter<Enum> sample_source =
+      EnumParameter.newBuilder("ct.sample_source", SAMPLE_SOURCE.FILE, SAMPLE_SOURCE.class)
+                   .setDescription("Where keys are sampled from for sampled split algorithm, FILE, TABLE or SNAPSHOT").opt();
+  private final Parameter<String> sample_path =
+      StringParameter.newBuilder("ct.sample_path")
+                     .setDescription("A file of a key per line (escaped like \\x00 for binary bytes), a table or a snapshot to sample keys from").opt();
+  private final Parameter<String> snapshot_restore_dir =
+      StringParameter.newBuilder("ct.snapshot_restore_dir")
+                     .setDescription("Restore dir for reading snapshot sample, on the same file system as hbase root dir").opt();
+  private final Parameter<Double> sample_rate =
+      DoubleParameter.newBuilder("ct.sample_rate").setDefaultValue(1.0)
+                     .setDescription("Fraction of keys sampled from the source, keys are skipped at random")
+                     .addConstraint(v -> v > 0).addConstraint(v -> v <= 1).opt();
+  private final Parameter<Integer> sketch_capacity =
+      IntParameter.newBuilder("ct.sketch_capacity").setDefaultValue(4096)
+                  .setDescription("Keys a level of quantile sketch holds, memory is bounded by capacity * log2(keys / capacity) keys")
+                  .addConstraint(v -> v >= 2).opt();
   private final Parameter<String> table_owners =
       StringParameter.newBuilder("ct.table_owners").setRequired().setDescription("Whom the table is under in charge by, delimited by ','").opt();
   private final Parameter<Integer> table_split_size =
@@ -101,6 +157,7 @@ public class CreateTable extends AbstractHBaseToy {
   private TableName table;
   private Admin admin;
   private SplitAlgorithm split;
+  private Configuration family_conf;
 
   @Override
   protected void requisite(List<Parameter> requisites) {
@@ -109,6 +166,17 @@ public class CreateTable extends AbstractHBaseToy {
     requisites.add(split_algorithm);
     requisites.add(hex_split_regions);
     requisites.add(dec_split_regions);
+    requisites.add(uniform_split_regions);
+    requisites.add(uniform_key_width);
+    requisites.add(salt_buckets);
+    requisites.add(salt_width);
+    requisites.add(salt_encoding);
+    requisites.add(sampled_split_regions);
+    requisites.add(sample_source);
+    requisites.add(sample_path);
+    requisites.add(snapshot_restore_dir);
+    requisites.add(sample_rate);
+    requisites.add(sketch_capacity);
     requisites.add(table_owners);
     requisites.add(table_split_size);
     requisites.add(sensitive_data);
@@ -129,23 +197,53 @@ public class CreateTable extends AbstractHBaseToy {
     table = TableName.valueOf(table_name.value());
     admin = connection.getAdmin();
     split = buildSplitAlgorithm(split_algorithm.value());
+    family_conf = connection.getConfiguration();
   }
 
-  @Override
-  public int haveFun() throws Exception {
-    if (admin.tableExists(table)) {
-      LOG.info("Table " + table + " exists, quitting.");
-      throw new TableExistsException(table);
-    }
+  /**
+   * Defines a table by a section of manifest instead of toy configuration, over a connection shared by tables.
+   * @param section ct.* keys of a table
+   * @param shared connection, it is not closed by this
+   */
+  @SuppressWarnings("rawtypes")
+  void define(ToyConfiguration section, Connection shared) {
+    List<Parameter> requisites = new ArrayList<>();
+    requisite(requisites);
+    preCheck(section, requisites);
+    connection = shared;
+    table = TableName.valueOf(table_name.value());
+    split = buildSplitAlgorithm(split_algorithm.value());
+    family_conf = new Configuration(false);
+    section.getProperties().forEach((k, v) -> family_conf.set((String) k, (String) v));
+  }
 
+  TableName table() {
+    return table;
+  }
+
+  HTableDescriptor descriptor() {
     HTableDescriptor descriptor = buildTableDescriptor();
     if (!table_split_size.empty()) {
       descriptor.setMaxFileSize(table_split_size.value() * Constants.ONE_MB);
     }
     for (String f : families.value()) {
-      descriptor.addFamily(buildFamilyDescriptor(f, connection.getConfiguration()));
+      descriptor.addFamily(buildFamilyDescriptor(f, family_conf));
+    }
+    return descriptor;
+  }
+
+  byte[][] splitKeys() {
+    return split.getSplitsKeys();
+  }
+
+  @Override
+  public int haveFun() throws Exception {
+    if (admin.tableExists(table)) {
+      LOG.info("Table " + table + " exists, quitting.");
+      throw new TableExistsException(table);
     }
-    admin.createTable(descriptor, split.getSplitsKeys());
+
+    admin.createTable(descriptor(), splitKeys());
     try {
       return RETURN_CODE.SUCCESS.code();
     } finally {
@@ -217,12 +315,47 @@ public class CreateTable extends AbstractHBaseToy {
     switch (algorithm) {
       case HEX: return new HexSplitAlgorithm(hex_split_regions.value());
       case DEC: return new DecSplitAlgorithm(dec_split_regions.value());
+      case UNIFORM: {
+        if (uniform_split_regions.empty()) {
+          throw new IllegalArgumentException(uniform_split_regions.key() + " is required by UNIFORM");
+        }
+        return new RadixSplitAlgorithm(uniform_split_regions.value(), ENCODING.BINARY, uniform_key_width.value(), false);
+      }
+      case SALTED: {
+        if (salt_buckets.empty()) {
+          throw new IllegalArgumentException(salt_buckets.key() + " is required by SALTED");
+        }
+        return new RadixSplitAlgorithm(salt_buckets.value(), (ENCODING) salt_encoding.value(), salt_width.value(), true);
+      }
+      case SAMPLED: {
+        if (sampled_split_regions.empty() || sample_path.empty()) {
+          throw new IllegalArgumentException(sampled_split_regions.key() + " and " + sample_path.key() + " are required by SAMPLED");
+        }
+        if (sample_source.value() == SAMPLE_SOURCE.SNAPSHOT && snapshot_restore_dir.empty()) {
+          throw new IllegalArgumentException(snapshot_restore_dir.key() + " is required by sampling snapshot");
+        }
+        return new SampledSplitAlgorithm(sampled_split_regions.value());
+      }
       default:  return new NoneSplitAlgorithm();
     }
   }
 
   enum ALGORITHM {
-    NONE, HEX, DEC
+    NONE, HEX, DEC, UNIFORM, SALTED, SAMPLED
+  }
+
+  enum ENCODING {
+    BINARY(256), DEC(10), HEX(16);
+
+    private final int radix;
+
+    ENCODING(int radix) {
+      this.radix = radix;
+    }
+  }
+
+  enum SAMPLE_SOURCE {
+    FILE, TABLE, SNAPSHOT
   }
 
   @Override
@@ -315,4 +448,151 @@ public class CreateTable extends AbstractHBaseToy {
 
   }
 
+  /**
+   * Splits a space of fixed width digits into even ranges. Split keys are written digit by digit, so pre-splitting
+   * tens of thousands of regions is cheap, and the number of regions needs not divide the space.
+   * Salted splits are at every bucket, uniform splits are at i * space / regions of the widest space wanted.
+   */
+  private class RadixSplitAlgorithm implements SplitAlgorithm {
+
+    private static final String DIGITS = "0123456789abcdef";
+
+    private final int regions;
+    private final ENCODING encoding;
+    private final int width;
+    private final BigInteger space;
+
+    RadixSplitAlgorithm(int regions, ENCODING encoding, int width, boolean salted) {
+      BigInteger radix = BigInteger.valueOf(encoding.radix);
+      if (width == 0) {
+        while (radix.pow(width).compareTo(BigInteger.valueOf(regions)) < 0) width++;
+      }
+      // Positions are held in an unsigned long
+      if (radix.pow(width).bitLength() > Long.SIZE + 1) {
+        throw new IllegalArgumentException("Width " + width + " of " + encoding + " digits is too wide");
+      }
+      if (radix.pow(width).compareTo(BigInteger.valueOf(regions)) < 0) {
+        throw new IllegalArgumentException(width + " " + encoding + " digits can not tell " + regions + " regions apart");
+      }
+      this.regions = regions;
+      this.encoding = encoding;
+      this.width = width;
+      this.space = salted ? BigInteger.valueOf(regions) : radix.pow(width);
+    }
+
+    @Override public byte[][] getSplitsKeys() {
+      // To split x regions, we only need x-1 split keys
+      byte[][] split_keys = new byte[regions - 1][];
+      BigInteger divisor = BigInteger.valueOf(regions);
+      for (int i = 1; i < regions; i++) {
+        long position = BigInteger.valueOf(i).multiply(space).divide(divisor).longValue();
+        byte[] key = new byte[width];
+        for (int j = width - 1; j >= 0; j--) {
+          int digit = (int) Long.remainderUnsigned(position, encoding.radix);
+          key[j] = encoding == ENCODING.BINARY ? (byte) digit : (byte) DIGITS.charAt(digit);
+          position = Long.divideUnsigned(position, encoding.radix);
+        }
+        split_keys[i - 1] = key;
+      }
+      return split_keys;
+    }
+
+  }
+
+  /**
+   * Streams keys from a file, a table or a snapshot into a quantile sketch, and splits at quantiles,
+   * so each region is expected to get the same share of keys however they are skewed.
+   */
+  private class SampledSplitAlgorithm implements SplitAlgorithm {
+
+    private final int regions;
+    private final QuantileSketch<byte[]> sketch =
+        new QuantileSketch<>(sketch_capacity.value(), Bytes.BYTES_COMPARATOR, 0);
+    private final SplittableRandom random = new SplittableRandom(0);
+
+    SampledSplitAlgorithm(int regions) {
+      this.regions = regions;
+    }
+
+    @Override public byte[][] getSplitsKeys() {
+      try {
+        sample((SAMPLE_SOURCE) sample_source.value());
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to sample keys from " + sample_path.value(), e);
+      }
+      LOG.info("Sampled " + sketch.count() + " keys, " + sketch.retained() + " are retained in sketch");
+      double[] fractions = new double[regions - 1];
+      for (int i = 0; i < fractions.length; i++) {
+        fractions[i] = (double) (i + 1) / regions;
+      }
+      List<byte[]> split_keys = new ArrayList<>(fractions.length);
+      for (byte[] key : sketch.quantiles(fractions)) {
+        // Heavily repeated keys make same quantiles, and empty key is not a valid split
+        if (key.length > 0 && (split_keys.isEmpty() || !Bytes.equals(key, split_keys.get(split_keys.size() - 1)))) {
+          split_keys.add(key);
+        }
+      }
+      if (split_keys.size() < fractions.length) {
+        LOG.warning("Only " + (split_keys.size() + 1) + " regions can be split by distinct sampled keys");
+      }
+      return split_keys.isEmpty() ? null : split_keys.toArray(new byte[0][]);
+    }
+
+    private void sample(SAMPLE_SOURCE source) throws IOException {
+      switch (source) {
+        case FILE: {
+          try (FileLineIterator lines = new FileLineIterator(sample_path.value())) {
+            while (lines.hasNext()) {
+              String line = lines.next();
+              if (!line.isEmpty() && sampled()) {
+                sketch.update(Bytes.toBytesBinary(line));
+              }
+            }
+          }
+          break;
+        }
+        case TABLE: {
+          Scan scan = keyOnlyScan();
+          if (sample_rate.value() < 1) {
+            // Skipped at server side, so they are not even transferred
+            scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter(),
+                new RandomRowFilter(sample_rate.value().floatValue())));
+          }
+          try (Table t = connection.getTable(TableName.valueOf(sample_path.value()));
+               ResultScanner scanner = t.getScanner(scan)) {
+            for (Result result : scanner) {
+              sketch.update(result.getRow());
+            }
+          }
+          break;
+        }
+        case SNAPSHOT: {
+          Configuration conf = connection.getConfiguration();
+          try (TableSnapshotScanner scanner =
+                   new TableSnapshotScanner(conf, new Path(snapshot_restore_dir.value()), sample_path.value(), keyOnlyScan())) {
+            for (Result result : scanner) {
+              if (sampled()) {
+                sketch.update(result.getRow());
+              }
+            }
+          }
+          break;
+        }
+      }
+    }
+
+    private boolean sampled() {
+      return sample_rate.value() >= 1 || random.nextDouble() < sample_rate.value();
+    }
+
+    private Scan keyOnlyScan() {
+      Scan scan = new Scan();
+      scan.setCaching(1000);
+      scan.setCacheBlocks(false);
+      scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+      return scan;
+    }
+
+  }
+
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.TableNotFoundException;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.aries.common.BoolParameter;
+import org.apache.aries.common.FileLineIterator;
+import org.apache.aries.common.IntParameter;
+import org.apache.aries.common.LatencyHistogram;
+import org.apache.aries.common.Parameter;
+import org.apache.aries.common.StringParameter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Creates tables listed in a manifest over one connection, a bounded number of them at a time. Tables are created
+ * asynchronously and polled until all regions are assigned, which is reported as latency of each table.
+ * A manifest is made of sections, a section starts with a line of [namespace:table] followed by ct.* keys of
+ * {@link CreateTable}. Keys before the first section are defaults of all sections. For example:
+ * <pre>
+ * ct.families_name=a
+ * ct.compression.a=SNAPPY
+ *
+ * [tenant:orders]
+ * ct.split_algorithm=UNIFORM
+ * ct.uniform_split_regions=64
+ *
+ * [tenant:users]
+ * </pre>
+ */
+@SuppressWarnings("rawtypes")
+public class CreateTables extends AbstractHBaseToy {
+
+  private final Parameter<String> manifest =
+      StringParameter.newBuilder("cts.manifest").setRequired()
+                     .setDescription("Manifest file of tables, a section of ct.* keys per table").opt();
+  private final Parameter<Integer> concurrency =
+      IntParameter.newBuilder("cts.concurrency").setDefaultValue(8)
+                  .setDescription("Tables being created at the same time")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> timeout_sec =
+      IntParameter.newBuilder("cts.timeout_sec").setDefaultValue(300)
+                  .setDescription("Seconds to wait for a table's regions to be assigned, before it is counted as failed")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> poll_interval_ms =
+      IntParameter.newBuilder("cts.poll_interval_ms").setDefaultValue(200)
+                  .setDescription("Interval of polling whether a created table is available")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Boolean> skip_existing =
+      BoolParameter.newBuilder("cts.skip_existing", true)
+                   .setDescription("Skip tables existing already, so a manifest can be replayed after partial failure, "
+                                   + "otherwise an existing table is counted as failed").opt();
+
+  private static final String TABLE_NAME_KEY = "ct.table_name";
+
+  private final List<CreateTable> tables = new ArrayList<>();
+  private ExecutorService service;
+
+  @Override
+  protected void requisite(List<Parameter> requisites) {
+    requisites.add(manifest);
+    requisites.add(concurrency);
+    requisites.add(timeout_sec);
+    requisites.add(poll_interval_ms);
+    requisites.add(skip_existing);
+  }
+
+  @Override
+  protected void buildToy(ToyConfiguration configuration) throws Exception {
+    super.buildToy(configuration);
+    // All tables are defined before any is created, so a bad section fails nothing half done
+    for (Map.Entry<String, Properties> section : readManifest(manifest.value()).entrySet()) {
+      Properties properties = section.getValue();
+      properties.putIfAbsent(TABLE_NAME_KEY, section.getKey());
+      CreateTable table = new CreateTable();
+      table.define(ToyConfiguration.create(properties), connection);
+      tables.add(table);
+    }
+    LOG.info(tables.size() + " tables are defined in " + manifest.value());
+    service = Executors.newFixedThreadPool(concurrency.value());
+  }
+
+  /**
+   * @return properties of each section by its name, defaults merged
+   */
+  private Map<String, Properties> readManifest(String file) {
+    Properties defaults = new Properties();
+    Map<String, Properties> sections = new LinkedHashMap<>();
+    Properties current = defaults;
+    try (FileLineIterator lines = new FileLineIterator(file)) {
+      while (lines.hasNext()) {
+        String line = lines.next().trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        if (line.startsWith("[") && line.endsWith("]")) {
+          String name = line.substring(1, line.length() - 1).trim();
+          if (sections.containsKey(name)) {
+            throw new IllegalArgumentException("Section " + name + " is duplicated in " + file);
+          }
+          current = new Properties();
+          current.putAll(defaults);
+          sections.put(name, current);
+          continue;
+        }
+        int eq = line.indexOf('=');
+        if (eq <= 0) {
+          throw new IllegalArgumentException("Expect 'key=value' but got '" + line + "' in " + file);
+        }
+        String key = line.substring(0, eq).trim();
+        if (current == defaults && key.equals(TABLE_NAME_KEY)) {
+          throw new IllegalArgumentException(key + " can't be a default, a table is named by its section in " + file);
+        }
+        current.setProperty(key, line.substring(eq + 1).trim());
+      }
+    }
+    return sections;
+  }
+
+  @Override
+  protected int haveFun() throws Exception {
+    long start = System.nanoTime();
+    List<Future<Long>> futures = new ArrayList<>(tables.size());
+    for (CreateTable table : tables) {
+      futures.add(service.submit(() -> create(table)));
+    }
+    LatencyHistogram latencies = new LatencyHistogram(TimeUnit.SECONDS.toMillis(timeout_sec.value()) * 2, 3);
+    int created = 0, skipped = 0, failed = 0;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        long latency_ms = futures.get(i).get();
+        if (latency_ms < 0) {
+          skipped++;
+        } else {
+          created++;
+          latencies.record(latency_ms);
+        }
+      } catch (Exception e) {
+        failed++;
+        LOG.warning("Failed to create " + tables.get(i).table() + ": " + e.getMessage());
+      }
+    }
+    double wall_sec = (System.nanoTime() - start) / 1e9;
+    LOG.info(String.format("%d tables created, %d skipped, %d failed in %.1f sec", created, skipped, failed, wall_sec));
+    if (created > 0) {
+      LOG.info("Assignment latency in ms: " + latencies.toPercentileString());
+    }
+    return failed == 0 ? RETURN_CODE.SUCCESS.code() : RETURN_CODE.FAILURE.code();
+  }
+
+  /**
+   * @return milliseconds from submit until all regions are assigned, -1 if table is skipped
+   */
+  private long create(CreateTable table) throws Exception {
+    TableName name = table.table();
+    try (Admin admin = connection.getAdmin()) {
+      if (admin.tableExists(name)) {
+        if (skip_existing.value()) {
+          LOG.info("Table " + name + " exists, skipped.");
+          return -1;
+        }
+        throw new IllegalStateException("Table " + name + " exists");
+      }
+      byte[][] split_keys = table.splitKeys();
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.SECONDS.toNanos(timeout_sec.value());
+      admin.createTableAsync(table.descriptor(), split_keys);
+      long submit_ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      while (!available(admin, name)) {
+        if (System.nanoTime() > deadline) {
+          throw new TimeoutException("Regions of " + name + " are not assigned in " + timeout_sec.value() + " sec");
+        }
+        TimeUnit.MILLISECONDS.sleep(poll_interval_ms.value());
+      }
+      long latency_ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      LOG.info("Table " + name + " with " + (split_keys == null ? 1 : split_keys.length + 1) + " regions is submitted in "
+               + submit_ms + " ms, assigned in " + latency_ms + " ms.");
+      return latency_ms;
+    }
+  }
+
+  private boolean available(Admin admin, TableName name) throws IOException {
+    try {
+      return admin.isTableAvailable(name);
+    } catch (TableNotFoundException e) {
+      // Master has not written table state yet
+      return false;
+    }
+  }
+
+  @Override
+  protected void destroyToy() throws Exception {
+    if (service != null) {
+      service.shutdownNow();
+    }
+    super.destroyToy();
+  }
+
+  @Override
+  protected void exampleConfiguration() {
+    example(manifest.key(), "/path/to/tables.manifest");
+    example(concurrency.key(), "8");
+    example(timeout_sec.key(), "300");
+    example(skip_existing.key(), "true");
+  }
+
+  @Override protected String getParameterPrefix() {
+    return "cts";
+  }
+
+}
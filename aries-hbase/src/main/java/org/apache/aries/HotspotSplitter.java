@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.DoubleParameter;
+import org.apache.aries.common.EnumParameter;
+import org.apache.aries.common.IntParameter;
+import org.apache.aries.common.MoveScheduler;
+import org.apache.aries.common.Parameter;
+import org.apache.aries.common.SplitScheduler;
+import org.apache.aries.common.StringArrayParameter;
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.MetaTableAccessor;
+import org.apache.hadoop.hbase.RegionLoad;
+import org.apache.hadoop.hbase.ServerLoad;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Watches request rates of regions and splits or moves hot ones, until stopped or hs.running_time passes.
+ * Every interval, request counts of all regions are taken from {@link ClusterStatus}, and their deltas kept in
+ * a ring of hs.window intervals per region, so a rate is over the last window. A region whose share of its
+ * server's rate stays above hs.hot_share for hs.sustain intervals in a row is hot. A hot region of a watched
+ * table is acted on, at most hs.max_actions_per_hour in total and once per hs.cooldown_sec per region.
+ * Actions run one at a time in background, sampling goes on meanwhile.
+ */
+@SuppressWarnings("rawtypes")
+public class HotspotSplitter extends AbstractHBaseToy {
+
+  private final Parameter<String[]> tables =
+      StringArrayParameter.newBuilder("hs.table_name")
+          .setDescription("Tables to act on, delimited by ','. Pattern is supported, by prefixing '#'. All user tables if not set").opt();
+  private final Parameter<Integer> interval_sec =
+      IntParameter.newBuilder("hs.interval_sec").setDefaultValue(30)
+                  .setDescription("Interval of sampling request counts, region servers report every 3 sec by default")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> window =
+      IntParameter.newBuilder("hs.window").setDefaultValue(10)
+                  .setDescription("Intervals a rate is over").addConstraint(v -> v > 0).opt();
+  private final Parameter<Enum> requests =
+      EnumParameter.newBuilder("hs.requests", REQUESTS.ALL, REQUESTS.class)
+                   .setDescription("Requests counted, READ, WRITE or ALL").opt();
+  private final Parameter<Double> hot_share =
+      DoubleParameter.newBuilder("hs.hot_share").setDefaultValue(0.5)
+                     .setDescription("Share of its server's rate above which a region is hot")
+                     .addConstraint(v -> v > 0).addConstraint(v -> v <= 1).opt();
+  private final Parameter<Integer> sustain =
+      IntParameter.newBuilder("hs.sustain").setDefaultValue(3)
+                  .setDescription("Intervals in a row a region is hot before it is acted on").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> min_server_rate =
+      IntParameter.newBuilder("hs.min_server_requests_per_sec").setDefaultValue(1000)
+                  .setDescription("Regions of a server below this rate are never hot, so idle servers are left alone")
+                  .addConstraint(v -> v >= 0).opt();
+  private final Parameter<Enum> action =
+      EnumParameter.newBuilder("hs.action", ACTION.SPLIT, ACTION.class)
+                   .setDescription("What is done to a hot region, NONE only logs it, SPLIT at midpoint, "
+                                   + "MOVE to the server of the lowest rate").opt();
+  private final Parameter<Integer> max_actions_per_hour =
+      IntParameter.newBuilder("hs.max_actions_per_hour").setDefaultValue(6)
+                  .setDescription("Actions in any hour at most").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> cooldown_sec =
+      IntParameter.newBuilder("hs.cooldown_sec").setDefaultValue(1800)
+                  .setDescription("Seconds before a region acted on may be acted on again").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Integer> action_timeout_sec =
+      IntParameter.newBuilder("hs.action_timeout_sec").setDefaultValue(300)
+                  .setDescription("Seconds for a split or move to be done, before it is counted as failed")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> running_time =
+      IntParameter.newBuilder("hs.running_time").setDescription("How long this runs (in seconds), until stopped if not set").opt();
+
+  enum REQUESTS {
+    READ, WRITE, ALL
+  }
+
+  enum ACTION {
+    NONE, SPLIT, MOVE
+  }
+
+  @Override protected String getParameterPrefix() {
+    return "hs";
+  }
+
+  @Override protected void requisite(List<Parameter> requisites) {
+    requisites.add(tables);
+    requisites.add(interval_sec);
+    requisites.add(window);
+    requisites.add(requests);
+    requisites.add(hot_share);
+    requisites.add(sustain);
+    requisites.add(min_server_rate);
+    requisites.add(action);
+    requisites.add(max_actions_per_hour);
+    requisites.add(cooldown_sec);
+    requisites.add(action_timeout_sec);
+    requisites.add(running_time);
+  }
+
+  @Override protected void exampleConfiguration() {
+    example(tables.key(), "ns1:t1,#ns2:.*");
+    example(interval_sec.key(), "30");
+    example(window.key(), "10");
+    example(hot_share.key(), "0.5");
+    example(action.key(), "SPLIT");
+    example(max_actions_per_hour.key(), "6");
+  }
+
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private final Map<TableName, Boolean> watched = new HashMap<>();
+  private final Deque<Long> recent_actions = new ArrayDeque<>();
+  private final AtomicInteger acted = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private List<Pattern> patterns;
+  private Rates rates;
+  private Admin admin;
+  private ExecutorService actor;
+  private SplitScheduler splitter;
+  private MoveScheduler mover;
+
+  @Override protected void buildToy(ToyConfiguration configuration) throws Exception {
+    super.buildToy(configuration);
+    admin = connection.getAdmin();
+    rates = new Rates(window.value());
+    patterns = new ArrayList<>();
+    if (!tables.empty()) {
+      for (String table_or_pattern : tables.value()) {
+        patterns.add(table_or_pattern.startsWith("#") ? Pattern.compile(table_or_pattern.substring(1))
+                                                      : Pattern.compile(Pattern.quote(TableName.valueOf(table_or_pattern).getNameAsString())));
+      }
+    }
+    long timeout_ms = TimeUnit.SECONDS.toMillis(action_timeout_sec.value());
+    // One action at a time, so caps of one are enough
+    splitter = new SplitScheduler(connection, 1, 1, timeout_ms, 1000, TimeUnit.MINUTES.toMillis(1));
+    mover = new MoveScheduler(connection, 1, 1, 1, timeout_ms, 3, 1000);
+    actor = Executors.newSingleThreadExecutor();
+    Runtime.getRuntime().addShutdownHook(new Thread(stopped::countDown));
+  }
+
+  @Override protected int haveFun() throws Exception {
+    long deadline = running_time.empty() ? Long.MAX_VALUE :
+                    System.nanoTime() + TimeUnit.SECONDS.toNanos(running_time.value());
+    int ticks = 0, hot = 0;
+    do {
+      if (System.nanoTime() > deadline) {
+        break;
+      }
+      try {
+        hot += sample(admin.getClusterStatus());
+        ticks++;
+      } catch (IOException e) {
+        LOG.warning("Failed to sample cluster status, will retry next interval: " + e);
+      }
+    } while (!stopped.await(interval_sec.value(), TimeUnit.SECONDS));
+    actor.shutdown();
+    actor.awaitTermination(action_timeout_sec.value(), TimeUnit.SECONDS);
+    LOG.info(String.format("Sampled %d intervals, %d hot regions seen, %d acted on, %d failed",
+        ticks, hot, acted.get(), failed.get()));
+    return failed.get() == 0 ? RETURN_CODE.SUCCESS.code() : RETURN_CODE.FAILURE.code();
+  }
+
+  /**
+   * @return regions hot long enough in this interval
+   */
+  private int sample(ClusterStatus status) {
+    long tick = rates.tick();
+    REQUESTS counted = (REQUESTS) requests.value();
+    for (ServerName server : status.getServers()) {
+      ServerLoad load = status.getLoad(server);
+      if (load == null) {
+        continue;
+      }
+      for (RegionLoad region : load.getRegionsLoad().values()) {
+        long count = counted == REQUESTS.READ ? region.getReadRequestsCount() :
+                     counted == REQUESTS.WRITE ? region.getWriteRequestsCount() :
+                     region.getReadRequestsCount() + region.getWriteRequestsCount();
+        rates.record(region.getName(), server, count, tick);
+      }
+    }
+    rates.evict(tick);
+
+    double interval = interval_sec.value();
+    Map<ServerName, Double> server_rates = new HashMap<>();
+    // A server without regions is the coolest target of all
+    for (ServerName server : status.getServers()) {
+      server_rates.put(server, 0.0);
+    }
+    for (int slot : rates.slots.values()) {
+      server_rates.merge(rates.servers[slot], rates.rate(slot, interval), Double::sum);
+    }
+
+    int hot = 0;
+    long now = System.nanoTime();
+    for (int slot : rates.slots.values()) {
+      double server_rate = server_rates.get(rates.servers[slot]);
+      double rate = rates.rate(slot, interval);
+      if (server_rate < min_server_rate.value() || rate < hot_share.value() * server_rate
+          || !isWatched(HRegionInfo.getTable(rates.names[slot]))) {
+        rates.streaks[slot] = 0;
+        continue;
+      }
+      if (++rates.streaks[slot] < sustain.value()) {
+        continue;
+      }
+      hot++;
+      String name = HRegionInfo.encodeRegionName(rates.names[slot]);
+      LOG.info(String.format("Region %s of %s is hot for %d intervals, %.1f of %.1f requests/sec on %s",
+          name, HRegionInfo.getTable(rates.names[slot]), rates.streaks[slot], rate, server_rate, rates.servers[slot]));
+      if (action.value() == ACTION.NONE || now < rates.cooldown_until[slot]) {
+        continue;
+      }
+      ServerName target = action.value() == ACTION.MOVE ? coolest(server_rates, rates.servers[slot], rate) : null;
+      if (action.value() == ACTION.MOVE && target == null) {
+        LOG.info("No server is cool enough to take " + name + ", it stays");
+        continue;
+      }
+      if (!takeBudget(now)) {
+        continue;
+      }
+      rates.cooldown_until[slot] = now + TimeUnit.SECONDS.toNanos(cooldown_sec.value());
+      byte[] region_name = rates.names[slot];
+      ServerName source = rates.servers[slot];
+      actor.submit(() -> act(region_name, source, target));
+    }
+    return hot;
+  }
+
+  private boolean isWatched(TableName table) {
+    return watched.computeIfAbsent(table, t -> {
+      if (t.isSystemTable()) {
+        return false;
+      }
+      if (patterns.isEmpty()) {
+        return true;
+      }
+      for (Pattern pattern : patterns) {
+        if (pattern.matcher(t.getNameAsString()).matches()) {
+          return true;
+        }
+      }
+      return false;
+    });
+  }
+
+  /**
+   * @return true if an action is allowed in the last hour, which is then counted
+   */
+  private boolean takeBudget(long now) {
+    while (!recent_actions.isEmpty() && now - recent_actions.peekFirst() > TimeUnit.HOURS.toNanos(1)) {
+      recent_actions.pollFirst();
+    }
+    if (recent_actions.size() >= max_actions_per_hour.value()) {
+      LOG.info("Budget of " + max_actions_per_hour.value() + " actions per hour is used up");
+      return false;
+    }
+    recent_actions.addLast(now);
+    return true;
+  }
+
+  /**
+   * @return server of the lowest rate, null if it would not be cooler than source even after taking the region
+   */
+  private ServerName coolest(Map<ServerName, Double> server_rates, ServerName source, double rate) {
+    ServerName coolest = null;
+    for (Map.Entry<ServerName, Double> server : server_rates.entrySet()) {
+      if (!server.getKey().equals(source) && (coolest == null || server.getValue() < server_rates.get(coolest))) {
+        coolest = server.getKey();
+      }
+    }
+    return coolest == null || server_rates.get(coolest) + rate >= server_rates.get(source) ? null : coolest;
+  }
+
+  private void act(byte[] region_name, ServerName source, ServerName target) {
+    try {
+      HRegionLocation location = MetaTableAccessor.getRegionLocation(connection, region_name);
+      if (location == null || location.getRegionInfo().isOffline() || !source.equals(location.getServerName())) {
+        LOG.info("Region " + HRegionInfo.encodeRegionName(region_name) + " is not on " + source + " any more, skipped");
+        return;
+      }
+      boolean done;
+      if (target == null) {
+        SplitScheduler.Report report = splitter.split(
+            Collections.singletonList(new SplitScheduler.Split(location.getRegionInfo(), source, (byte[]) null)));
+        done = report.failed().isEmpty();
+      } else {
+        MoveScheduler.Report report = mover.move(
+            Collections.singletonList(new MoveScheduler.Move(location.getRegionInfo(), source, target)));
+        done = report.failed().isEmpty();
+      }
+      (done ? acted : failed).incrementAndGet();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      LOG.warning("Failed to act on " + HRegionInfo.encodeRegionName(region_name) + ": " + e);
+    }
+  }
+
+  @Override protected void destroyToy() throws Exception {
+    if (actor != null) {
+      actor.shutdownNow();
+    }
+    if (mover != null) {
+      mover.close();
+    }
+    if (splitter != null) {
+      splitter.close();
+    }
+    if (admin != null) {
+      admin.close();
+    }
+    super.destroyToy();
+  }
+
+  /**
+   * Request deltas of regions in primitive arrays indexed by slot, a slot is reused once its region is gone.
+   * Deltas of a slot are a ring of window entries, all slots are at the same position of their rings.
+   */
+  private static final class Rates {
+
+    private final int window;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Deque<Integer> free = new ArrayDeque<>();
+    private long tick = -1;
+    private int capacity;
+    private byte[][] names = new byte[0][];
+    private ServerName[] servers = new ServerName[0];
+    private long[] last_counts = new long[0];
+    private long[] deltas = new long[0];
+    private int[] samples = new int[0];
+    private long[] seen_ticks = new long[0];
+    private int[] streaks = new int[0];
+    private long[] cooldown_until = new long[0];
+
+    Rates(int window) {
+      this.window = window;
+    }
+
+    long tick() {
+      return ++tick;
+    }
+
+    void record(byte[] name, ServerName server, long count, long tick) {
+      String key = HRegionInfo.encodeRegionName(name);
+      Integer slot = slots.get(key);
+      int pos = (int) (tick % window);
+      if (slot == null) {
+        slot = allocate();
+        slots.put(key, slot);
+        names[slot] = name;
+        Arrays.fill(deltas, slot * window, (slot + 1) * window, 0);
+        samples[slot] = 0;
+        streaks[slot] = 0;
+        cooldown_until[slot] = Long.MIN_VALUE;
+      } else {
+        // Counts start over when a region is reopened, e.g. moved
+        deltas[slot * window + pos] = count >= last_counts[slot] ? count - last_counts[slot] : count;
+        samples[slot] = Math.min(window, samples[slot] + 1);
+      }
+      servers[slot] = server;
+      last_counts[slot] = count;
+      seen_ticks[slot] = tick;
+    }
+
+    /**
+     * Frees slots of regions not reported in this tick.
+     */
+    void evict(long tick) {
+      slots.values().removeIf(slot -> {
+        if (seen_ticks[slot] == tick) {
+          return false;
+        }
+        names[slot] = null;
+        servers[slot] = null;
+        free.push(slot);
+        return true;
+      });
+    }
+
+    /**
+     * @return requests per second over the samples of a slot, at most a window of them
+     */
+    double rate(int slot, double interval_sec) {
+      if (samples[slot] == 0) {
+        return 0;
+      }
+      // Entries beyond samples are still zero, so summing the whole ring is the same
+      long sum = 0;
+      for (int i = slot * window; i < (slot + 1) * window; i++) {
+        sum += deltas[i];
+      }
+      return sum / (samples[slot] * interval_sec);
+    }
+
+    private int allocate() {
+      if (!free.isEmpty()) {
+        return free.pop();
+      }
+      if (slots.size() == capacity) {
+        capacity = Math.max(16, capacity * 2);
+        names = Arrays.copyOf(names, capacity);
+        servers = Arrays.copyOf(servers, capacity);
+        last_counts = Arrays.copyOf(last_counts, capacity);
+        deltas = Arrays.copyOf(deltas, capacity * window);
+        samples = Arrays.copyOf(samples, capacity);
+        seen_ticks = Arrays.copyOf(seen_ticks, capacity);
+        streaks = Arrays.copyOf(streaks, capacity);
+        cooldown_until = Arrays.copyOf(cooldown_until, capacity);
+      }
+      return slots.size();
+    }
+
+  }
+
+}
@@ -19,31 +19,44 @@ package org.apache.aries;
 import org.apache.aries.common.Constants;
 import org.apache.aries.common.IntParameter;
 import org.apache.aries.common.Parameter;
-import org.apache.aries.common.RegionInfo;
+import org.apache.aries.common.RegionMetrics;
 import org.apache.aries.common.StringParameter;
-import org.apache.aries.common.TableInfo;
 import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.MetaTableAccessor;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Admin;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.apache.hadoop.hbase.util.Bytes;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("rawtypes")
 public class MergeTable extends AbstractHBaseToy {
 
+  private final Parameter<String> table_name =
+      StringParameter.newBuilder("mt.table_name").setDescription("Table to merge regions of").opt();
   private final Parameter<String> merge_table_url =
-      StringParameter.newBuilder("mt.url").setRequired().setDescription("The pages of the table. Please copy from HBase Web UI").opt();
+      StringParameter.newBuilder("mt.url").setDescription("Deprecated, use mt.table_name. The table page of HBase Web UI, only table name is taken from it").opt();
   private final Parameter<Integer> merge_size_threshold =
       IntParameter.newBuilder("mt.merge_threshold_megabytes").setDefaultValue(100)
                   .setDescription("Regions under this threshold will be merged, unit in MB").opt();
-  private final Parameter<Integer> runs_interval_sec =
-      IntParameter.newBuilder("mt.run_interval_sec").setDefaultValue(600).setDescription("Interval between merge run, in seconds").opt();
+  private final Parameter<Integer> merge_target_size =
+      IntParameter.newBuilder("mt.merge_target_megabytes").setDefaultValue(1024)
+                  .setDescription("Adjacent regions are merged into one as long as their total size stays under this, unit in MB")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> merge_timeout_sec =
+      IntParameter.newBuilder("mt.merge_timeout_sec").setDefaultValue(600)
+                  .setDescription("Seconds to wait for a merge to show up online, before it is given up").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> poll_interval_ms =
+      IntParameter.newBuilder("mt.poll_interval_ms").setDefaultValue(1000)
+                  .setDescription("Interval of polling regions for finished merges").addConstraint(v -> v > 0).opt();
   private final Parameter<String> merge_condition =
       StringParameter.newBuilder("mt.merge_condition").setDefaultValue("all").setRequired()
                      .setDescription("Merge condition, there're 3 options: all, size, rreq, "
@@ -55,27 +68,29 @@ public class MergeTable extends AbstractHBaseToy {
 
   @Override
   protected void requisite(List<Parameter> requisites) {
+    requisites.add(table_name);
     requisites.add(merge_table_url);
     requisites.add(merge_condition);
     requisites.add(merge_size_threshold);
     requisites.add(merge_rreq_threshold);
-    requisites.add(runs_interval_sec);
+    requisites.add(merge_target_size);
+    requisites.add(merge_timeout_sec);
+    requisites.add(poll_interval_ms);
   }
 
   @Override
   protected void exampleConfiguration() {
-    example(merge_table_url.key(), "http://host:port/table.jsp?name=namespace:table");
+    example(table_name.key(), "namespace:table");
     example(merge_condition.key(), "all");
     example(merge_size_threshold.key(), "100");
     example(merge_rreq_threshold.key(), "0");
-    example(runs_interval_sec.key(), "500");
+    example(merge_target_size.key(), "1024");
   }
 
   Admin admin;
   TableName table;
   long threshold_bytes;
-  int read_requests;
-  int round = Constants.UNSET_INT;
+  long read_requests;
 
   final Conditions conditions = new Conditions();
   final MergeCondition size_condition = region -> region.getSizeInBytes() < threshold_bytes;
@@ -85,8 +100,12 @@ public class MergeTable extends AbstractHBaseToy {
   protected void buildToy(ToyConfiguration configuration) throws Exception {
     super.buildToy(configuration);
     admin = connection.getAdmin();
-    int start = merge_table_url.value().indexOf("=") + 1;
-    table = TableName.valueOf(merge_table_url.value().substring(start));
+    if (!table_name.empty()) {
+      table = TableName.valueOf(table_name.value());
+    } else {
+      int start = merge_table_url.value().indexOf("=") + 1;
+      table = TableName.valueOf(merge_table_url.value().substring(start));
+    }
 
     String type = merge_condition.value();
     if (type.equalsIgnoreCase("size")) {
@@ -103,49 +122,164 @@ public class MergeTable extends AbstractHBaseToy {
     }
   }
 
+  @Override
+  protected void midCheck() {
+    if (table_name.empty() && merge_table_url.empty()) {
+      throw new IllegalArgumentException(table_name.key() + " is not set");
+    }
+  }
+
+  /**
+   * Merges maximal runs of adjacent qualified regions, each run under target size. HBase merges two regions at a
+   * time, so a run is merged pairwise in rounds like a tree, log2 of its length. Merges of a round never overlap,
+   * so all of them, over all runs, are issued at once, and the next round starts once they are all online.
+   */
   @Override
   protected int haveFun() throws Exception {
-    do {
-      List<HRegionInfo> regions = admin.getTableRegions(table);
-      Document doc = Jsoup.connect(merge_table_url.value()).get();
-      Element element = doc.getElementById("regionServerDetailsTable");
-      TableInfo table_info = new TableInfo(element);
-      if (round == Constants.UNSET_INT) {
-        // It is determined by first run.
-        round = calculateHowManyRuns(table_info);
+    long start = System.nanoTime();
+    List<HRegionInfo> regions = new ArrayList<>(admin.getTableRegions(table));
+    Collections.sort(regions);
+    List<List<HRegionInfo>> runs = planRuns(regions, RegionMetrics.of(admin.getClusterStatus(), table));
+    int merged = 0, failed = 0;
+    for (int round = 1; !runs.isEmpty(); round++) {
+      List<Merge> merges = new ArrayList<>();
+      for (List<HRegionInfo> run : runs) {
+        for (int i = 0; i + 1 < run.size(); i += 2) {
+          merges.add(new Merge(run.get(i), run.get(i + 1)));
+        }
       }
-      for (int i = 0, index_a, index_b; i < table_info.regionNum();) {
-        index_a = i++;
-        index_b = i++;
-        if (index_b >= table_info.regionNum()) {
-          break;
+      for (Merge merge : merges) {
+        try {
+          LOG.info("Merging region " + merge.a.getEncodedName() + " and " + merge.b.getEncodedName());
+          admin.mergeRegions(merge.a.getEncodedNameAsBytes(), merge.b.getEncodedNameAsBytes(), false);
+        } catch (IOException e) {
+          LOG.warning("Failed to merge " + merge.a.getEncodedName() + " and " + merge.b.getEncodedName() + ": " + e);
+          merge.failed = true;
         }
-        RegionInfo region_A = table_info.getRegionAtIndex(index_a);
-        RegionInfo region_B = table_info.getRegionAtIndex(index_b);
-        if (conditions.shouldMerge(region_A, region_B)) {
-          HRegionInfo A_region = regions.get(index_a);
-          HRegionInfo B_region = regions.get(index_b);
-          LOG.info("Merging region " + A_region.getRegionId() + " and " + B_region.getRegionId());
-          admin.mergeRegions(
-              A_region.getEncodedNameAsBytes(),
-              B_region.getEncodedNameAsBytes(),
-              false);
+      }
+      waitForMerges(merges);
+      List<List<HRegionInfo>> next = new ArrayList<>();
+      Iterator<Merge> issued = merges.iterator();
+      for (List<HRegionInfo> run : runs) {
+        List<HRegionInfo> segment = new ArrayList<>();
+        for (int i = 0; i < run.size(); i += 2) {
+          if (i + 1 == run.size()) {
+            segment.add(run.get(i));
+            continue;
+          }
+          Merge merge = issued.next();
+          if (merge.merged != null) {
+            merged++;
+            segment.add(merge.merged);
+          } else {
+            // A failed pair breaks the run, both sides of it go on
+            failed++;
+            addRun(segment, next);
+            segment = new ArrayList<>();
+          }
         }
+        addRun(segment, next);
       }
-      LOG.info("Sleeping for " + runs_interval_sec.value() + " seconds to wait for CatalogJanitor cleaning merged regions.");
-      TimeUnit.SECONDS.sleep(runs_interval_sec.value());
-    } while (--round != 0);
-    return 0;
+      LOG.info("Round " + round + " finished, " + next.size() + " runs left");
+      runs = next;
+    }
+    LOG.info(String.format("%d merges done, %d failed, %d regions before, %d regions now, in %.1f sec", merged, failed,
+        regions.size(), admin.getTableRegions(table).size(), (System.nanoTime() - start) / 1e9));
+    return failed == 0 ? RETURN_CODE.SUCCESS.code() : RETURN_CODE.FAILURE.code();
   }
 
-  private int calculateHowManyRuns(TableInfo table) {
-    int qualified_for_merge = 0;
-    for (RegionInfo region : table.getRegions()) {
-      qualified_for_merge += conditions.shouldMerge(region) ? 1 : 0;
+  /**
+   * @param regions regions sorted by start key
+   * @return runs of adjacent qualified regions, at least two regions a run
+   */
+  private List<List<HRegionInfo>> planRuns(List<HRegionInfo> regions, Map<String, RegionMetrics> metrics) {
+    long target_bytes = merge_target_size.value() * Constants.ONE_MB;
+    List<List<HRegionInfo>> runs = new ArrayList<>();
+    List<HRegionInfo> run = new ArrayList<>();
+    long run_bytes = 0;
+    HRegionInfo previous = null;
+    for (HRegionInfo region : regions) {
+      RegionMetrics region_metrics = metrics.get(region.getEncodedName());
+      // Regions not reported are in transition, leave them alone
+      boolean qualified = region_metrics != null && conditions.shouldMerge(region_metrics);
+      boolean adjacent = previous != null && Bytes.equals(previous.getEndKey(), region.getStartKey());
+      if (!qualified || !adjacent || run_bytes + region_metrics.getSizeInBytes() > target_bytes) {
+        addRun(run, runs);
+        run = new ArrayList<>();
+        run_bytes = 0;
+      }
+      if (qualified) {
+        run.add(region);
+        run_bytes += region_metrics.getSizeInBytes();
+      }
+      previous = region;
     }
-    int result = (int) (Math.log(qualified_for_merge) / Math.log(2));
-    LOG.info("There will be " + result + " runs");
-    return result;
+    addRun(run, runs);
+    int qualified = 0;
+    for (List<HRegionInfo> r : runs) {
+      qualified += r.size();
+    }
+    LOG.info("There are " + runs.size() + " runs of " + qualified + " regions to merge");
+    return runs;
+  }
+
+  private static void addRun(List<HRegionInfo> run, List<List<HRegionInfo>> runs) {
+    if (run.size() > 1) {
+      runs.add(run);
+    }
+  }
+
+  /**
+   * Polls regions of table until every merge shows up online as a region spanning both, or times out.
+   */
+  private void waitForMerges(List<Merge> merges) throws IOException, InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(merge_timeout_sec.value());
+    while (true) {
+      Map<String, HRegionInfo> by_range = new HashMap<>();
+      for (HRegionInfo region : admin.getTableRegions(table)) {
+        by_range.put(Bytes.toStringBinary(region.getStartKey()) + "," + Bytes.toStringBinary(region.getEndKey()), region);
+      }
+      int pending = 0;
+      for (Merge merge : merges) {
+        if (merge.failed || merge.merged != null) {
+          continue;
+        }
+        HRegionInfo region = by_range.get(Bytes.toStringBinary(merge.a.getStartKey()) + "," + Bytes.toStringBinary(merge.b.getEndKey()));
+        HRegionLocation location = region == null ? null : MetaTableAccessor.getRegionLocation(connection, region.getRegionName());
+        if (location != null && location.getServerName() != null) {
+          merge.merged = region;
+        } else {
+          pending++;
+        }
+      }
+      if (pending == 0) {
+        return;
+      }
+      if (System.nanoTime() > deadline) {
+        for (Merge merge : merges) {
+          if (!merge.failed && merge.merged == null) {
+            LOG.warning("Merge of " + merge.a.getEncodedName() + " and " + merge.b.getEncodedName() + " is not online in time");
+            merge.failed = true;
+          }
+        }
+        return;
+      }
+      TimeUnit.MILLISECONDS.sleep(poll_interval_ms.value());
+    }
+  }
+
+  private static final class Merge {
+
+    private final HRegionInfo a;
+    private final HRegionInfo b;
+    private HRegionInfo merged;
+    private boolean failed;
+
+    Merge(HRegionInfo a, HRegionInfo b) {
+      this.a = a;
+      this.b = b;
+    }
+
   }
 
   @Override
@@ -159,7 +293,7 @@ public class MergeTable extends AbstractHBaseToy {
   }
 
   interface MergeCondition {
-    boolean shouldMerge(RegionInfo region);
+    boolean shouldMerge(RegionMetrics region);
   }
 
   class Conditions {
@@ -169,16 +303,7 @@ public class MergeTable extends AbstractHBaseToy {
       conditions.add(condition);
     }
 
-    public boolean shouldMerge(RegionInfo region_A, RegionInfo region_B) {
-      for (MergeCondition condition : conditions) {
-        if (condition.shouldMerge(region_A) || condition.shouldMerge(region_B)) {
-          return true;
-        }
-      }
-      return false;
-    }
-
-    public boolean shouldMerge(RegionInfo region) {
+    public boolean shouldMerge(RegionMetrics region) {
       for (MergeCondition condition : conditions) {
         if (condition.shouldMerge(region)) {
           return true;
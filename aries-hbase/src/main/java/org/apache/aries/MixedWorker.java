@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries;
+
+import org.apache.aries.common.BoolParameter;
+import org.apache.aries.common.Constants;
+import org.apache.aries.common.DataGenerator;
+import org.apache.aries.common.DoubleParameter;
+import org.apache.aries.common.EnumParameter;
+import org.apache.aries.common.IntParameter;
+import org.apache.aries.common.KeyDistribution;
+import org.apache.aries.common.KeyFormatter;
+import org.apache.aries.common.LatencyHistogram;
+import org.apache.aries.common.LongParameter;
+import org.apache.aries.common.Parameter;
+import org.apache.aries.common.StringParameter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.TableNotFoundException;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read/write mixed workload on HBase, works like PutWorker that each worker owns a connection,
+ * but picks an operation by proportions for each round. Presets A to F are equivalent to YCSB core workloads.
+ */
+@SuppressWarnings("rawtypes")
+public class MixedWorker extends AbstractHBaseToy {
+
+  private final Parameter<Integer> num_connections =
+      IntParameter.newBuilder("mw.num_connections").setRequired()
+                  .setDescription("Number of connections, each is used by one worker thread")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<String> table_name =
+      StringParameter.newBuilder("mw.target_table").setRequired()
+                     .setDescription("A table the workload runs against").opt();
+  private final Parameter<String> family =
+      StringParameter.newBuilder("mw.target_family").setRequired()
+                     .setDescription("A family that belongs to the target_table").opt();
+  private final Parameter<Enum> workload =
+      EnumParameter.newBuilder("mw.workload", WORKLOAD.A, WORKLOAD.class)
+                   .setDescription("Presets equivalent to YCSB workloads. A: 50% read 50% update, B: 95% read 5% update, C: 100% read, "
+                       + "D: 95% read latest 5% insert, E: 95% short scan 5% insert, F: 50% read 50% read-modify-write. "
+                       + "CUSTOM: use mw.*_proportion and mw.request_distribution").opt();
+  private final Parameter<Long> record_count =
+      LongParameter.newBuilder("mw.record_count").setDefaultValue(1_000_000L)
+                   .setDescription("Number of records in the table, reads and updates pick keys among them")
+                   .addConstraint(v -> v > 0).opt();
+  private final Parameter<Boolean> load =
+      BoolParameter.newBuilder("mw.load", false)
+                   .setDescription("Insert mw.record_count records before running the workload").opt();
+  private final Parameter<Integer> field_count =
+      IntParameter.newBuilder("mw.field_count").setDefaultValue(10)
+                  .setDescription("Number of qualifiers per record").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> field_length =
+      IntParameter.newBuilder("mw.field_length").setDefaultValue(100)
+                  .setDescription("Length of value in each qualifier, in bytes").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> key_length =
+      IntParameter.newBuilder("mw.key_length").setDefaultValue(Constants.DEFAULT_KEY_LENGTH_PW)
+                  .setDescription("Digits of a key, without prefix").addConstraint(v -> v > 0).opt();
+  private final Parameter<Enum> key_prefix =
+      EnumParameter.newBuilder("mw.key_prefix", KeyFormatter.PREFIX.NONE, KeyFormatter.PREFIX.class)
+                   .setDescription("Prefix keys with a bucket matching CreateTable's split algorithm, options are: NONE, HEX, DEC").opt();
+  private final Parameter<Double> read_proportion =
+      DoubleParameter.newBuilder("mw.read_proportion").setDefaultValue(0.0)
+                     .setDescription("Proportion of reads, only for CUSTOM").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Double> update_proportion =
+      DoubleParameter.newBuilder("mw.update_proportion").setDefaultValue(0.0)
+                     .setDescription("Proportion of updates, only for CUSTOM").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Double> insert_proportion =
+      DoubleParameter.newBuilder("mw.insert_proportion").setDefaultValue(0.0)
+                     .setDescription("Proportion of inserts, only for CUSTOM").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Double> scan_proportion =
+      DoubleParameter.newBuilder("mw.scan_proportion").setDefaultValue(0.0)
+                     .setDescription("Proportion of scans, only for CUSTOM").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Double> rmw_proportion =
+      DoubleParameter.newBuilder("mw.read_modify_write_proportion").setDefaultValue(0.0)
+                     .setDescription("Proportion of read-modify-writes, only for CUSTOM").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Enum> request_distribution =
+      EnumParameter.newBuilder("mw.request_distribution", KeyDistribution.TYPE.SCRAMBLED_ZIPFIAN, KeyDistribution.TYPE.class)
+                   .setDescription("How keys of reads, updates and scans are picked, only for CUSTOM. "
+                       + "Options are: UNIFORM, ZIPFIAN, SCRAMBLED_ZIPFIAN, LATEST, HOTSPOT").opt();
+  private final Parameter<Double> zipfian_theta =
+      DoubleParameter.newBuilder("mw.zipfian_theta").setDefaultValue(0.99)
+                     .setDescription("Skew of zipfian and latest distribution, in (0, 1)")
+                     .addConstraint(v -> v > 0).addConstraint(v -> v < 1).opt();
+  private final Parameter<Integer> max_scan_length =
+      IntParameter.newBuilder("mw.max_scan_length").setDefaultValue(100)
+                  .setDescription("A scan reads uniformly 1 to this many rows").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> running_time =
+      IntParameter.newBuilder("mw.running_time").setDescription("How long the workload runs (in seconds)").opt();
+  private final Parameter<String> histogram_dir =
+      StringParameter.newBuilder("mw.histogram_output_dir")
+                     .setDescription("If set, latency histograms will be written into this directory at the end, for comparing between runs").opt();
+
+  enum WORKLOAD {
+    A, B, C, D, E, F, CUSTOM
+  }
+
+  enum OP {
+    READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE
+  }
+
+  // Latencies are recorded in microseconds, anything longer than an hour is clamped.
+  private static final long HIGHEST_LATENCY_US = TimeUnit.HOURS.toMicros(1);
+  private static final int LATENCY_PRECISION = 3;
+
+  private Admin admin;
+  private ExecutorService service;
+  private volatile boolean running = true;
+  private volatile boolean stopped = false;
+  private TableName table;
+  private final Object mutex = new Object();
+  private byte[] family_bytes;
+  private byte[][] qualifiers;
+  private final double[] proportions = new double[OP.values().length];
+  private KeyDistribution request_keys;
+  private KeyDistribution.Sequential insert_keys;
+  private KeyDistribution.Sequential load_keys;
+  private Worker[] workers;
+  private long start_ts;
+
+  @Override
+  protected void requisite(List<Parameter> requisites) {
+    requisites.add(num_connections);
+    requisites.add(table_name);
+    requisites.add(family);
+    requisites.add(workload);
+    requisites.add(record_count);
+    requisites.add(load);
+    requisites.add(field_count);
+    requisites.add(field_length);
+    requisites.add(key_length);
+    requisites.add(key_prefix);
+    requisites.add(read_proportion);
+    requisites.add(update_proportion);
+    requisites.add(insert_proportion);
+    requisites.add(scan_proportion);
+    requisites.add(rmw_proportion);
+    requisites.add(request_distribution);
+    requisites.add(zipfian_theta);
+    requisites.add(max_scan_length);
+    requisites.add(running_time);
+    requisites.add(histogram_dir);
+  }
+
+  @Override
+  protected void exampleConfiguration() {
+    example(num_connections.key(), "8");
+    example(table_name.key(), "table:for_workload");
+    example(family.key(), "f");
+    example(workload.key(), "A");
+    example(record_count.key(), "1000000");
+    example(load.key(), "true");
+    example(field_count.key(), "10");
+    example(field_length.key(), "100");
+    example(key_length.key(), "10");
+    example(key_prefix.key(), "NONE");
+    example(running_time.key(), "600");
+    example(histogram_dir.key(), "/tmp/mixed_worker");
+  }
+
+  @Override
+  protected void midCheck() {
+    if (record_count.value() > new KeyFormatter(KeyFormatter.PREFIX.NONE, key_length.value()).capacity()) {
+      throw new IllegalArgumentException(record_count.key() + " doesn't fit in " + key_length.value() + " digits");
+    }
+    if (workload.value() == WORKLOAD.CUSTOM && (request_distribution.value() == KeyDistribution.TYPE.RANDOM
+        || request_distribution.value() == KeyDistribution.TYPE.SEQUENTIAL)) {
+      throw new IllegalArgumentException(request_distribution.key() + " doesn't support " + request_distribution.value());
+    }
+  }
+
+  @Override
+  protected void buildToy(ToyConfiguration configuration) throws Exception {
+    super.buildToy(configuration);
+    table = TableName.valueOf(table_name.value());
+    admin = connection.getAdmin();
+    if (!admin.tableExists(table)) {
+      throw new TableNotFoundException(table);
+    }
+
+    family_bytes = Bytes.toBytes(family.value());
+    qualifiers = new byte[field_count.value()][];
+    for (int i = 0; i < qualifiers.length; i++) {
+      qualifiers[i] = Bytes.toBytes("field" + i);
+    }
+    // Loaders overrun record count by one key each, so inserts count on their own from where load ends
+    load_keys = new KeyDistribution.Sequential(0);
+    insert_keys = new KeyDistribution.Sequential(record_count.value());
+    request_keys = buildWorkload((WORKLOAD) workload.value());
+
+    service = Executors.newFixedThreadPool(num_connections.value());
+    workers = new Worker[num_connections.value()];
+    for (int i = 0; i < num_connections.value(); i++) {
+      workers[i] = new Worker(configuration);
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      synchronized (mutex) {
+        stopped = true;
+        mutex.notify();
+      }
+    }));
+  }
+
+  private KeyDistribution buildWorkload(WORKLOAD preset) {
+    KeyDistribution.TYPE type = KeyDistribution.TYPE.SCRAMBLED_ZIPFIAN;
+    switch (preset) {
+      case A: setProportions(0.5, 0.5, 0, 0, 0);     break;
+      case B: setProportions(0.95, 0.05, 0, 0, 0);   break;
+      case C: setProportions(1, 0, 0, 0, 0);         break;
+      case D: setProportions(0.95, 0, 0.05, 0, 0);   type = KeyDistribution.TYPE.LATEST; break;
+      case E: setProportions(0, 0, 0.05, 0.95, 0);   break;
+      case F: setProportions(0.5, 0, 0, 0, 0.5);     break;
+      default: {
+        setProportions(read_proportion.value(), update_proportion.value(), insert_proportion.value(),
+            scan_proportion.value(), rmw_proportion.value());
+        type = (KeyDistribution.TYPE) request_distribution.value();
+      }
+    }
+    LOG.info("Workload " + preset + " with " + type + " requests, proportions of " + OP.READ + "," + OP.UPDATE + ","
+        + OP.INSERT + "," + OP.SCAN + "," + OP.READ_MODIFY_WRITE + " are " + Arrays.toString(proportions));
+    switch (type) {
+      case UNIFORM:           return new KeyDistribution.Uniform(record_count.value());
+      case ZIPFIAN:           return new KeyDistribution.Zipfian(record_count.value(), zipfian_theta.value());
+      case SCRAMBLED_ZIPFIAN: return new KeyDistribution.ScrambledZipfian(record_count.value(), zipfian_theta.value());
+      case LATEST:            return new KeyDistribution.Latest(insert_keys, record_count.value(), zipfian_theta.value(), false);
+      case HOTSPOT:           return new KeyDistribution.Hotspot(record_count.value(), 0.2, 0.8);
+      default:                throw new IllegalArgumentException("Unsupported request distribution " + type);
+    }
+  }
+
+  private void setProportions(double read, double update, double insert, double scan, double rmw) {
+    double total = read + update + insert + scan + rmw;
+    if (total <= 0) {
+      throw new IllegalArgumentException("At least one of the proportions should be positive");
+    }
+    // Cumulative, normalized to 1
+    proportions[OP.READ.ordinal()] = read / total;
+    proportions[OP.UPDATE.ordinal()] = proportions[OP.READ.ordinal()] + update / total;
+    proportions[OP.INSERT.ordinal()] = proportions[OP.UPDATE.ordinal()] + insert / total;
+    proportions[OP.SCAN.ordinal()] = proportions[OP.INSERT.ordinal()] + scan / total;
+    proportions[OP.READ_MODIFY_WRITE.ordinal()] = 1.0;
+  }
+
+  @Override
+  protected int haveFun() throws Exception {
+    try {
+      if (load.value()) {
+        long start = System.nanoTime();
+        for (Worker worker : workers) {
+          worker.loading = true;
+          service.submit(worker);
+        }
+        service.shutdown();
+        service.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        long elapsed_ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOG.info("Loaded " + record_count.value() + " records in " + elapsed_ms + " ms");
+        service = Executors.newFixedThreadPool(num_connections.value());
+      }
+
+      if (!running_time.empty()) {
+        new Timer(true).schedule(new TimerTask() {
+          @Override
+          public void run() {
+            synchronized (mutex) {
+              stopped = true;
+              mutex.notify();
+            }
+          }
+        }, TimeUnit.SECONDS.toMillis(running_time.value()));
+      }
+
+      start_ts = System.currentTimeMillis();
+      for (Worker worker : workers) {
+        worker.loading = false;
+        service.submit(worker);
+      }
+      synchronized (mutex) {
+        while (!stopped) {
+          mutex.wait();
+        }
+        running = false;
+      }
+      service.shutdown();
+      service.awaitTermination(30, TimeUnit.SECONDS);
+      double elapsed_sec = (System.currentTimeMillis() - start_ts) / 1000.0;
+
+      long total_ops = 0;
+      for (OP op : OP.values()) {
+        LatencyHistogram histogram = new LatencyHistogram(HIGHEST_LATENCY_US, LATENCY_PRECISION);
+        long errors = 0, not_found = 0;
+        for (Worker worker : workers) {
+          histogram.add(worker.latencies[op.ordinal()]);
+          errors += worker.errors[op.ordinal()];
+          not_found += worker.not_found[op.ordinal()];
+        }
+        if (histogram.getTotalCount() == 0 && errors == 0) {
+          continue;
+        }
+        total_ops += histogram.getTotalCount();
+        LOG.info(op + " errors: " + errors + ", not found: " + not_found);
+        report(op.name().toLowerCase(), histogram);
+      }
+      LOG.info("Total " + total_ops + " operations in " + String.format("%.1f", elapsed_sec) + " seconds, throughput "
+          + String.format("%.1f", total_ops / elapsed_sec) + " ops/sec");
+    } finally {
+      service.shutdownNow();
+    }
+    return RETURN_CODE.SUCCESS.code();
+  }
+
+  private void report(String name, LatencyHistogram histogram) throws IOException {
+    LOG.info(name + " latency (us): " + histogram.toPercentileString());
+    if (!histogram_dir.empty()) {
+      Path file = Paths.get(histogram_dir.value(), getClass().getSimpleName() + "-" + name + "-" + start_ts + ".hgrm");
+      histogram.writeTo(file, 1.0);
+      LOG.info("Histogram of " + name + " latency is written to " + file);
+    }
+  }
+
+  @Override
+  protected void destroyToy() throws Exception {
+    for (Worker worker : workers) {
+      worker.close();
+    }
+    admin.close();
+    super.destroyToy();
+  }
+
+  @Override protected String getParameterPrefix() {
+    return "mw";
+  }
+
+  class Worker implements Runnable {
+
+    final Connection connection;
+    final Table table_handle;
+    final KeyFormatter formatter = new KeyFormatter((KeyFormatter.PREFIX) key_prefix.value(), key_length.value());
+    final DataGenerator generator = new DataGenerator(formatter.length(), field_length.value());
+    final LatencyHistogram[] latencies = new LatencyHistogram[OP.values().length];
+    final long[] errors = new long[OP.values().length];
+    final long[] not_found = new long[OP.values().length];
+    boolean loading;
+
+    Worker(ToyConfiguration conf) throws IOException {
+      Configuration hbase_conf = ConfigurationFactory.createHBaseConfiguration(conf);
+      connection = ConnectionFactory.createConnection(hbase_conf);
+      table_handle = connection.getTable(table);
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = new LatencyHistogram(HIGHEST_LATENCY_US, LATENCY_PRECISION);
+      }
+      LOG.info("Connection created " + connection);
+    }
+
+    @Override
+    public void run() {
+      if (loading) {
+        load();
+        return;
+      }
+      while (running) {
+        OP op = nextOp();
+        long start = System.nanoTime();
+        try {
+          boolean found = true;
+          switch (op) {
+            case READ:              found = read(); break;
+            case UPDATE:            update(); break;
+            case INSERT:            insert(); break;
+            case SCAN:              scan(); break;
+            case READ_MODIFY_WRITE: found = readModifyWrite(); break;
+          }
+          latencies[op.ordinal()].record((System.nanoTime() - start) / 1000);
+          if (!found) {
+            not_found[op.ordinal()]++;
+          }
+        } catch (IOException e) {
+          errors[op.ordinal()]++;
+          LOG.warning(op + " failed: " + e.getMessage());
+        }
+      }
+    }
+
+    private void load() {
+      BufferedMutatorParams param = new BufferedMutatorParams(table);
+      try (BufferedMutator mutator = connection.getBufferedMutator(param)) {
+        long index;
+        while (running && (index = load_keys.next(generator.random())) < record_count.value()) {
+          mutator.mutate(buildPut(formatter.format(index), true));
+        }
+        mutator.flush();
+      } catch (IOException e) {
+        LOG.warning("Loading failed: " + e.getMessage());
+      }
+    }
+
+    private OP nextOp() {
+      double r = generator.random().nextDouble();
+      for (OP op : OP.values()) {
+        if (r < proportions[op.ordinal()]) {
+          return op;
+        }
+      }
+      return OP.READ_MODIFY_WRITE;
+    }
+
+    private byte[] requestKey() {
+      return formatter.format(request_keys.next(generator.random()));
+    }
+
+    private Put buildPut(byte[] key, boolean all_fields) {
+      Put put = new Put(key);
+      if (all_fields) {
+        for (byte[] qualifier : qualifiers) {
+          put.addColumn(family_bytes, qualifier, generator.nextValue());
+        }
+      } else {
+        put.addColumn(family_bytes, qualifiers[generator.random().nextInt(qualifiers.length)], generator.nextValue());
+      }
+      return put;
+    }
+
+    private Result get(byte[] key) throws IOException {
+      Get get = new Get(key);
+      get.addFamily(family_bytes);
+      return table_handle.get(get);
+    }
+
+    /**
+     * @return false if the row is not found
+     */
+    private boolean read() throws IOException {
+      return !get(requestKey()).isEmpty();
+    }
+
+    private void update() throws IOException {
+      table_handle.put(buildPut(requestKey(), false));
+    }
+
+    private void insert() throws IOException {
+      table_handle.put(buildPut(formatter.format(insert_keys.next(generator.random())), true));
+    }
+
+    private void scan() throws IOException {
+      int length = 1 + generator.random().nextInt(max_scan_length.value());
+      Scan scan = new Scan().withStartRow(requestKey()).addFamily(family_bytes).setCaching(length).setLimit(length);
+      try (ResultScanner scanner = table_handle.getScanner(scan)) {
+        for (int i = 0; i < length && scanner.next() != null; i++);
+      }
+    }
+
+    /**
+     * @return false if the row is not found, it is written anyway
+     */
+    private boolean readModifyWrite() throws IOException {
+      byte[] key = requestKey();
+      boolean found = !get(key).isEmpty();
+      table_handle.put(buildPut(key, false));
+      return found;
+    }
+
+    void close() throws IOException {
+      table_handle.close();
+      connection.close();
+    }
+
+  }
+
+}
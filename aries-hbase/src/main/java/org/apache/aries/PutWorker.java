@@ -16,39 +16,91 @@
 
 package org.apache.aries;
 
+import org.apache.aries.common.BoolParameter;
+import org.apache.aries.common.DoubleParameter;
 import org.apache.aries.common.EnumParameter;
-import org.apache.aries.common.ToyUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.ServerName;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.client.Admin;
 import org.apache.hadoop.hbase.client.BufferedMutator;
 import org.apache.hadoop.hbase.client.BufferedMutatorParams;
 import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 import org.apache.aries.common.Constants;
+import org.apache.aries.common.DataGenerator;
 import org.apache.aries.common.IntParameter;
+import org.apache.aries.common.IntervalReporter;
+import org.apache.aries.common.KeyDistribution;
+import org.apache.aries.common.KeyFormatter;
+import org.apache.aries.common.KeyRange;
+import org.apache.aries.common.LatencyHistogram;
+import org.apache.aries.common.LatencyRecorder;
 import org.apache.aries.common.LongParameter;
 import org.apache.aries.common.Parameter;
+import org.apache.aries.common.StringArrayParameter;
 import org.apache.aries.common.StringParameter;
+import org.apache.aries.common.ValueSize;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
 public class PutWorker extends AbstractHBaseToy {
 
   private final Parameter<Integer> num_connections =
-      IntParameter.newBuilder("pw.num_connections").setRequired()
-                  .setDescription("Number of connections used for put")
+      IntParameter.newBuilder("pw.num_connections")
+                  .setDescription("Number of connections used for put, each with its own thread. "
+                      + "It is the default of both pw.threads and pw.connections")
                   .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> threads =
+      IntParameter.newBuilder("pw.threads")
+                  .setDescription("Number of threads putting, pw.num_connections if not set")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> connections =
+      IntParameter.newBuilder("pw.connections")
+                  .setDescription("Number of connections, threads are assigned to them round-robin. "
+                      + "pw.num_connections if not set, or pw.threads if neither is set")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Boolean> shared_mutator =
+      BoolParameter.newBuilder("pw.shared_mutator", false)
+                   .setDescription("Threads on the same connection share one BufferedMutator, instead of one per thread").opt();
   private final Parameter<String> table_name =
       StringParameter.newBuilder("pw.target_table").setRequired()
                      .setDescription("A table that data will be put in").opt();
@@ -66,7 +118,162 @@ public class PutWorker extends AbstractHBaseToy {
                    .setDescription("Value is fixed or random generated").opt();
   private final Parameter<Integer> key_length =
       IntParameter.newBuilder("pw.key_length").setDefaultValue(Constants.DEFAULT_KEY_LENGTH_PW).
-          setDescription("The length of the generated key in bytes.").opt();
+          setDescription("The length of the generated key in bytes.").addConstraint(v -> v > 0).opt();
+  private final Parameter<Enum> key_distribution =
+      EnumParameter.newBuilder("pw.key_distribution", KeyDistribution.TYPE.RANDOM, KeyDistribution.TYPE.class)
+                   .setDescription("How keys are picked, options are: RANDOM (random alphanumeric), SEQUENTIAL, UNIFORM, ZIPFIAN, "
+                       + "SCRAMBLED_ZIPFIAN, LATEST, HOTSPOT. Except RANDOM, keys are zero-padded decimal indexes in pw.key_space").opt();
+  private final Parameter<Long> key_space =
+      LongParameter.newBuilder("pw.key_space").setDefaultValue(1_000_000_000L)
+                   .setDescription("Number of distinct keys for UNIFORM, ZIPFIAN, SCRAMBLED_ZIPFIAN and HOTSPOT, "
+                       + "or the window LATEST looks back. It must fit in pw.key_length digits")
+                   .addConstraint(v -> v > 0).opt();
+  private final Parameter<Double> zipfian_theta =
+      DoubleParameter.newBuilder("pw.zipfian_theta").setDefaultValue(0.99)
+                     .setDescription("Skew of ZIPFIAN, SCRAMBLED_ZIPFIAN and LATEST, in (0, 1), larger is more skewed")
+                     .addConstraint(v -> v > 0).addConstraint(v -> v < 1).opt();
+  private final Parameter<Double> hotspot_data_fraction =
+      DoubleParameter.newBuilder("pw.hotspot_data_fraction").setDefaultValue(0.2)
+                     .setDescription("Fraction of key space that is hot in HOTSPOT, the hot keys are contiguous")
+                     .addConstraint(v -> v > 0).addConstraint(v -> v <= 1).opt();
+  private final Parameter<Double> hotspot_op_fraction =
+      DoubleParameter.newBuilder("pw.hotspot_op_fraction").setDefaultValue(0.8)
+                     .setDescription("Fraction of puts that go to hot keys in HOTSPOT")
+                     .addConstraint(v -> v >= 0).addConstraint(v -> v <= 1).opt();
+  private final Parameter<Enum> key_prefix =
+      EnumParameter.newBuilder("pw.key_prefix", KeyFormatter.PREFIX.NONE, KeyFormatter.PREFIX.class)
+                   .setDescription("Prefix keys with a bucket matching CreateTable's split algorithm, options are: NONE, HEX (00-ff), DEC (000-999). "
+                       + "A key always gets the same bucket, so skew of key distribution shows on regions").opt();
+  private final Parameter<String> histogram_dir =
+      StringParameter.newBuilder("pw.histogram_output_dir")
+                     .setDescription("If set, latency histograms will be written into this directory at the end, for comparing between runs").opt();
+  private final Parameter<Integer> target_ops_per_sec =
+      IntParameter.newBuilder("pw.target_ops_per_sec")
+                  .setDescription("If set, puts are issued at this rate in total, spread evenly across workers, "
+                      + "and latency is measured from the intended start time of each put. Otherwise workers put as fast as possible")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Boolean> saturation_search =
+      BoolParameter.newBuilder("pw.saturation_search", false)
+                   .setDescription("Start from pw.target_ops_per_sec, step the rate up until p99 latency breaks pw.saturation_sla_p99_ms").opt();
+  private final Parameter<Double> saturation_sla_p99_ms =
+      DoubleParameter.newBuilder("pw.saturation_sla_p99_ms").setDefaultValue(50.0)
+                     .setDescription("The p99 latency in milliseconds a rate step must meet in saturation search")
+                     .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> saturation_step_ops =
+      IntParameter.newBuilder("pw.saturation_step_ops_per_sec").setDefaultValue(1000)
+                  .setDescription("How much rate is increased per step in saturation search")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> saturation_step_seconds =
+      IntParameter.newBuilder("pw.saturation_step_seconds").setDefaultValue(60)
+                  .setDescription("How long each step runs in saturation search, in seconds")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> saturation_max_steps =
+      IntParameter.newBuilder("pw.saturation_max_steps").setDefaultValue(50)
+                  .setDescription("Saturation search gives up after this many steps")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> report_interval =
+      IntParameter.newBuilder("pw.report_interval_sec").setDefaultValue(10)
+                  .setDescription("Print throughput and latency of the last interval every this many seconds, 0 means only totals at the end. "
+                      + "Latency is response latency if pw.target_ops_per_sec is set, otherwise latency of mutate")
+                  .addConstraint(v -> v >= 0).opt();
+
+  private final Parameter<Enum> write_mode_param =
+      EnumParameter.newBuilder("pw.write_mode", WRITE_MODE.MUTATOR, WRITE_MODE.class)
+                   .setDescription("MUTATOR puts through BufferedMutator, BATCH submits List<Put> by Table.batchCallback, "
+                       + "so batch size and concurrent batches can be tuned").opt();
+  private final Parameter<Integer> batch_rows =
+      IntParameter.newBuilder("pw.batch_rows").setDefaultValue(100)
+                  .setDescription("Max rows of a batch in BATCH mode")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Long> batch_bytes =
+      LongParameter.newBuilder("pw.batch_bytes").setDefaultValue(0L)
+                   .setDescription("Max key and value bytes of a batch in BATCH mode, 0 means limited by pw.batch_rows only")
+                   .addConstraint(v -> v >= 0).opt();
+  private final Parameter<Integer> batch_in_flight =
+      IntParameter.newBuilder("pw.batch_in_flight").setDefaultValue(1)
+                  .setDescription("Max outstanding batches per thread in BATCH mode")
+                  .addConstraint(v -> v > 0).opt();
+
+  private final Parameter<Enum> affinity_param =
+      EnumParameter.newBuilder("pw.affinity", AFFINITY.NONE, AFFINITY.class)
+                   .setDescription("Pin threads to key ranges, so a flush doesn't fan out to every server. Options are: NONE, "
+                       + "REGION (regions are dealt to threads), SERVER (regions of a server go to the same threads). "
+                       + "Ranges are taken from region locations at start, generated keys are placed inside them").opt();
+
+  private final Parameter<Long> seed =
+      LongParameter.newBuilder("pw.seed")
+                   .setDescription("If set, keys and values are generated from this seed, so a run is reproducible and can be verified. "
+                       + "Values are derived from their keys, a key written twice gets the same value").opt();
+  private final Parameter<Boolean> verify =
+      BoolParameter.newBuilder("pw.verify", false)
+                   .setDescription("After writing, read back every row written by multi-gets in parallel and check value checksums. "
+                       + "It requires pw.seed, and works with keys picked by a thread's own random only").opt();
+  private final Parameter<Integer> verify_batch_rows =
+      IntParameter.newBuilder("pw.verify_batch_rows").setDefaultValue(100)
+                  .setDescription("Rows per multi-get in verification")
+                  .addConstraint(v -> v > 0).opt();
+
+  private final Parameter<Enum> durability =
+      EnumParameter.newBuilder("pw.durability", Durability.USE_DEFAULT, Durability.class)
+                   .setDescription("Durability of puts, options are: USE_DEFAULT, SKIP_WAL, ASYNC_WAL, SYNC_WAL, FSYNC_WAL").opt();
+  private final Parameter<String[]> durability_sweep =
+      StringArrayParameter.newBuilder("pw.durability_sweep")
+                          .setDescription("If set, the workload runs once per durability listed, e.g. ASYNC_WAL,SYNC_WAL,FSYNC_WAL, "
+                              + "each for pw.sweep_step_seconds, and a table comparing them is printed at the end").opt();
+  private final Parameter<Enum> durability_scope =
+      EnumParameter.newBuilder("pw.durability_scope", DURABILITY_SCOPE.PUT, DURABILITY_SCOPE.class)
+                   .setDescription("Durability is set on each put (PUT), or on the table descriptor (TABLE), "
+                       + "which is restored when the run is over").opt();
+  private final Parameter<Integer> sweep_step_seconds =
+      IntParameter.newBuilder("pw.sweep_step_seconds").setDefaultValue(60)
+                  .setDescription("How long each durability runs in a sweep, in seconds")
+                  .addConstraint(v -> v > 0).opt();
+
+  private final Parameter<Enum> value_size =
+      EnumParameter.newBuilder("pw.value_size", ValueSize.TYPE.FIXED, ValueSize.TYPE.class)
+                   .setDescription("Distribution of sizes of RANDOM values, options are: FIXED (pw.value_length), "
+                       + "UNIFORM (pw.value_min_length to pw.value_max_length), NORMAL (mean pw.value_length, "
+                       + "pw.value_stddev, clamped by pw.value_max_length), HISTOGRAM (pw.value_size_histogram)").opt();
+  private final Parameter<Integer> value_length =
+      IntParameter.newBuilder("pw.value_length").setDefaultValue(22)
+                  .setDescription("Size of RANDOM values in bytes, or the mean size of NORMAL")
+                  .addConstraint(v -> v >= 0).opt();
+  private final Parameter<Integer> value_min_length =
+      IntParameter.newBuilder("pw.value_min_length").setDefaultValue(0)
+                  .setDescription("Smallest value size of UNIFORM")
+                  .addConstraint(v -> v >= 0).opt();
+  private final Parameter<Integer> value_max_length =
+      IntParameter.newBuilder("pw.value_max_length").setDefaultValue(1024)
+                  .setDescription("Largest value size of UNIFORM and NORMAL")
+                  .addConstraint(v -> v >= 0).opt();
+  private final Parameter<Double> value_stddev =
+      DoubleParameter.newBuilder("pw.value_stddev").setDefaultValue(10.0)
+                     .setDescription("Standard deviation of value sizes of NORMAL")
+                     .addConstraint(v -> v >= 0).opt();
+  private final Parameter<String> value_size_histogram =
+      StringParameter.newBuilder("pw.value_size_histogram")
+                     .setDescription("A file of HISTOGRAM, each line is a value size and its weight, e.g. '1024 0.3'").opt();
+  private final Parameter<Double> compression_ratio =
+      DoubleParameter.newBuilder("pw.compression_ratio")
+                     .setDescription("If set, RANDOM values are generated to compress by about this ratio, "
+                         + "only 1/ratio of a value is random bytes. Otherwise values are random alphanumeric")
+                     .addConstraint(v -> v >= 1).opt();
+  private final Parameter<Integer> num_qualifiers =
+      IntParameter.newBuilder("pw.qualifiers").setDefaultValue(1)
+                  .setDescription("Columns per row, named q0, q1... each gets its own value. A single column is named q")
+                  .addConstraint(v -> v > 0).opt();
+
+  enum DURABILITY_SCOPE {
+    PUT, TABLE
+  }
+
+  enum AFFINITY {
+    NONE, REGION, SERVER
+  }
+
+  enum WRITE_MODE {
+    MUTATOR, BATCH
+  }
 
   enum VALUE_KIND {
     RANDOM, FIXED
@@ -75,30 +282,167 @@ public class PutWorker extends AbstractHBaseToy {
   private Admin admin;
   private ExecutorService service;
   private volatile boolean running = true;
+  private volatile boolean stopped = false;
   private TableName table;
   private final Object mutex = new Object();
   private VALUE_KIND kind;
+  private byte[] family_bytes;
+  private KeyDistribution.TYPE distribution_type;
+  private KeyDistribution distribution;
   private AtomicLong totalRows = new AtomicLong(0);
+  private Worker[] workers;
+  private Connection[] shared_connections;
+  private SplittableRandom seeds;
+  private ValueSize value_sizes;
+  private byte[][] qualifiers;
+  // Durability set on each put, null if puts use the table's
+  private Durability put_durability;
+  private WRITE_MODE write_mode;
+  private ExecutorService batch_service;
+  private final Map<String, LongAdder> rows_by_region_name = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> failures_by_server = new ConcurrentHashMap<>();
+  private BufferedMutator[] shared_mutators;
+  private long start_ts;
+  private IntervalReporter reporter;
+  private IntervalReporter.Meter put_meter;
+
+  // Latencies are recorded in microseconds, anything longer than an hour is clamped.
+  private static final long HIGHEST_LATENCY_US = TimeUnit.HOURS.toMicros(1);
+  private static final int LATENCY_PRECISION = 3;
+  private static final int REPORTED_REGIONS = 10;
 
   @Override
   protected void requisite(List<Parameter> requisites) {
     requisites.add(num_connections);
+    requisites.add(threads);
+    requisites.add(connections);
+    requisites.add(shared_mutator);
     requisites.add(table_name);
     requisites.add(family);
     requisites.add(buffer_size);
     requisites.add(running_time);
     requisites.add(value_kind);
+    requisites.add(key_length);
+    requisites.add(key_distribution);
+    requisites.add(key_space);
+    requisites.add(zipfian_theta);
+    requisites.add(hotspot_data_fraction);
+    requisites.add(hotspot_op_fraction);
+    requisites.add(key_prefix);
+    requisites.add(histogram_dir);
+    requisites.add(target_ops_per_sec);
+    requisites.add(saturation_search);
+    requisites.add(saturation_sla_p99_ms);
+    requisites.add(saturation_step_ops);
+    requisites.add(saturation_step_seconds);
+    requisites.add(saturation_max_steps);
+    requisites.add(report_interval);
+    requisites.add(write_mode_param);
+    requisites.add(batch_rows);
+    requisites.add(batch_bytes);
+    requisites.add(batch_in_flight);
+    requisites.add(affinity_param);
+    requisites.add(seed);
+    requisites.add(verify);
+    requisites.add(verify_batch_rows);
+    requisites.add(durability);
+    requisites.add(durability_sweep);
+    requisites.add(durability_scope);
+    requisites.add(sweep_step_seconds);
+    requisites.add(value_size);
+    requisites.add(value_length);
+    requisites.add(value_min_length);
+    requisites.add(value_max_length);
+    requisites.add(value_stddev);
+    requisites.add(value_size_histogram);
+    requisites.add(compression_ratio);
+    requisites.add(num_qualifiers);
   }
 
   @Override
   protected void exampleConfiguration() {
-    example(num_connections.key(), "3");
+    example(threads.key(), "32");
+    example(connections.key(), "4");
+    example(shared_mutator.key(), "false");
     example(table_name.key(), "table:for_put");
     example(family.key(), "f");
     example(buffer_size.key(), "1024");
     example(running_time.key(), "300");
     example(value_kind.key(), "FIXED");
     example(key_length.key(), "10");
+    example(key_distribution.key(), "ZIPFIAN");
+    example(key_space.key(), "100000000");
+    example(zipfian_theta.key(), "0.99");
+    example(hotspot_data_fraction.key(), "0.2");
+    example(hotspot_op_fraction.key(), "0.8");
+    example(key_prefix.key(), "HEX");
+    example(histogram_dir.key(), "/tmp/put_worker");
+    example(target_ops_per_sec.key(), "20000");
+    example(saturation_search.key(), "false");
+    example(saturation_sla_p99_ms.key(), "50");
+    example(saturation_step_ops.key(), "5000");
+    example(saturation_step_seconds.key(), "60");
+    example(saturation_max_steps.key(), "50");
+    example(report_interval.key(), "10");
+    example(write_mode_param.key(), "BATCH");
+    example(batch_rows.key(), "500");
+    example(batch_bytes.key(), "2097152");
+    example(batch_in_flight.key(), "4");
+    example(affinity_param.key(), "SERVER");
+    example(seed.key(), "20190101");
+    example(verify.key(), "true");
+    example(verify_batch_rows.key(), "100");
+    example(durability.key(), "USE_DEFAULT");
+    example(durability_sweep.key(), "SKIP_WAL,ASYNC_WAL,SYNC_WAL,FSYNC_WAL");
+    example(durability_scope.key(), "PUT");
+    example(sweep_step_seconds.key(), "120");
+    example(value_size.key(), "NORMAL");
+    example(value_length.key(), "1000");
+    example(value_max_length.key(), "4096");
+    example(value_stddev.key(), "200");
+    example(compression_ratio.key(), "2.5");
+    example(num_qualifiers.key(), "10");
+  }
+
+  @Override
+  protected void midCheck() {
+    if (value_kind.value() == VALUE_KIND.FIXED && (value_size.value() != ValueSize.TYPE.FIXED || !compression_ratio.empty())) {
+      throw new IllegalArgumentException(value_size.key() + " and " + compression_ratio.key() + " apply to RANDOM values only");
+    }
+    if (value_size.value() == ValueSize.TYPE.HISTOGRAM && value_size_histogram.empty()) {
+      throw new IllegalArgumentException(value_size_histogram.key() + " is required by HISTOGRAM value sizes");
+    }
+    if (!durability_sweep.empty()) {
+      for (String d : durability_sweep.value()) {
+        Durability.valueOf(d.trim());
+      }
+      if (saturation_search.value() || verify.value()) {
+        throw new IllegalArgumentException(durability_sweep.key() + " doesn't work with "
+            + saturation_search.key() + " or " + verify.key());
+      }
+    }
+    if (verify.value()) {
+      if (seed.empty()) {
+        throw new IllegalArgumentException(verify.key() + " requires " + seed.key());
+      }
+      if (saturation_search.value()) {
+        throw new IllegalArgumentException(verify.key() + " doesn't work with " + saturation_search.key());
+      }
+      // Sequence of these is shared by threads, a thread can't replay its own keys
+      if (key_distribution.value() == KeyDistribution.TYPE.SEQUENTIAL || key_distribution.value() == KeyDistribution.TYPE.LATEST) {
+        throw new IllegalArgumentException(verify.key() + " doesn't work with " + key_distribution.value() + " keys");
+      }
+    }
+    if (num_connections.empty() && threads.empty()) {
+      throw new IllegalArgumentException("Either " + threads.key() + " or " + num_connections.key() + " is required");
+    }
+    if (saturation_search.value() && target_ops_per_sec.empty()) {
+      throw new IllegalArgumentException(target_ops_per_sec.key() + " is required as the starting rate of saturation search");
+    }
+    if (key_distribution.value() != KeyDistribution.TYPE.RANDOM
+        && key_space.value() > new KeyFormatter(KeyFormatter.PREFIX.NONE, key_length.value()).capacity()) {
+      throw new IllegalArgumentException(key_space.key() + " " + key_space.value() + " doesn't fit in " + key_length.value() + " digits");
+    }
   }
 
   @Override
@@ -110,15 +454,55 @@ public class PutWorker extends AbstractHBaseToy {
       throw new TableNotFoundException(table);
     }
 
-    service = Executors.newFixedThreadPool(num_connections.value());
-    Worker[] workers = new Worker[num_connections.value()];
-    for (int i = 0; i < num_connections.value(); i++) {
-      workers[i] = new Worker(configuration);
-      service.submit(workers[i]);
+    family_bytes = Bytes.toBytes(family.value());
+    distribution_type = (KeyDistribution.TYPE) key_distribution.value();
+    if (distribution_type != KeyDistribution.TYPE.RANDOM) {
+      distribution = buildKeyDistribution(distribution_type);
+    }
+    reporter = new IntervalReporter(getClass().getSimpleName(),
+        TimeUnit.SECONDS.toMillis(report_interval.value()), HIGHEST_LATENCY_US, LATENCY_PRECISION);
+    write_mode = (WRITE_MODE) write_mode_param.value();
+    put_meter = reporter.register(write_mode == WRITE_MODE.BATCH ? "batch" : "put");
+    int num_threads = threads.empty() ? num_connections.value() : threads.value();
+    int num_conns = !connections.empty() ? connections.value() :
+                    !num_connections.empty() ? num_connections.value() : num_threads;
+    num_conns = Math.min(num_conns, num_threads);
+    Configuration hbase_conf = ConfigurationFactory.createHBaseConfiguration(configuration);
+    shared_connections = new Connection[num_conns];
+    for (int i = 0; i < num_conns; i++) {
+      shared_connections[i] = ConnectionFactory.createConnection(hbase_conf);
+      LOG.info("Connection created " + shared_connections[i]);
+    }
+    if (shared_mutator.value()) {
+      shared_mutators = new BufferedMutator[num_conns];
+    }
+    LOG.info(num_threads + " threads put over " + num_conns + " connections, with "
+        + (shared_mutator.value() ? num_conns : num_threads) + " buffered mutators");
+
+    service = Executors.newFixedThreadPool(num_threads);
+    if (write_mode == WRITE_MODE.BATCH) {
+      batch_service = Executors.newFixedThreadPool(num_threads * batch_in_flight.value());
+    }
+    start_ts = System.currentTimeMillis();
+    List<List<KeyRange>> units = keyRangeUnits((AFFINITY) affinity_param.value());
+    seeds = seed.empty() ? null : new SplittableRandom(seed.value());
+    value_sizes = buildValueSize((ValueSize.TYPE) value_size.value());
+    qualifiers = new byte[num_qualifiers.value()][];
+    for (int i = 0; i < qualifiers.length; i++) {
+      qualifiers[i] = Bytes.toBytes(qualifiers.length == 1 ? "q" : "q" + i);
+    }
+    workers = new Worker[num_threads];
+    for (int i = 0; i < num_threads; i++) {
+      // Round-robin, so sharers of a connection differ by at most one
+      workers[i] = new Worker(i % num_conns, (num_threads - i % num_conns + num_conns - 1) / num_conns);
+      if (!units.isEmpty()) {
+        workers[i].ranges = assign(units, i, num_threads);
+      }
     }
 
     Runtime.getRuntime().addShutdownHook(new Thread(() -> {
       synchronized (mutex) {
+        stopped = true;
         mutex.notify();
       }
     }));
@@ -133,6 +517,7 @@ public class PutWorker extends AbstractHBaseToy {
             // Ignore
           } finally {
             synchronized (mutex) {
+              stopped = true;
               mutex.notify();
             }
           }
@@ -145,21 +530,310 @@ public class PutWorker extends AbstractHBaseToy {
 
   @Override
   protected int haveFun() throws Exception {
-    synchronized (mutex) {
-      mutex.wait();
-      running = false;
+    reporter.start();
+    Durability table_durability = admin.getTableDescriptor(table).getDurability();
+    if (durability.value() != Durability.USE_DEFAULT) {
+      applyDurability((Durability) durability.value());
+    }
+    try {
+      if (saturation_search.value()) {
+        searchSaturation();
+      } else if (!durability_sweep.empty()) {
+        sweepDurability();
+      } else {
+        // Run may be cut short by shutdown hook, so throughput is over the time it actually ran.
+        double elapsed_sec = runPhase(target_ops_per_sec.empty() ? 0 : target_ops_per_sec.value(), 0);
+        LOG.info("Total wrote " + totalRows.get() + " rows in " + String.format("%.1f", elapsed_sec) + " seconds.");
+        LOG.info("Avg " + totalRows.get() / elapsed_sec);
+        if (write_mode == WRITE_MODE.BATCH) {
+          report("batch", merge(w -> w.batch_latency));
+          reportRegions();
+        } else {
+          report("mutate", merge(w -> w.mutate_latency));
+          report("flush", merge(w -> w.flush_latency));
+        }
+        if (!target_ops_per_sec.empty()) {
+          report("response", merge(w -> w.response_latency));
+        }
+        if (verify.value()) {
+          verifyAll();
+        }
+      }
+    } finally {
+      if (durability_scope.value() == DURABILITY_SCOPE.TABLE
+          && admin.getTableDescriptor(table).getDurability() != table_durability) {
+        applyDurability(table_durability);
+      }
+      reporter.stop();
+      service.shutdown();
+      if (batch_service != null) {
+        batch_service.shutdown();
+      }
     }
-    service.awaitTermination(30, TimeUnit.SECONDS);
-    LOG.info("Total wrote " + totalRows.get() + " rows in " + running_time.value() + " seconds.");
-    LOG.info("Avg " + (double) (totalRows.get()) / running_time.value());
     LOG.info("Existing.");
     return 0;
   }
 
+  /**
+   * Every worker replays its keys from its seed and reads them back, so workers verify in parallel,
+   * each on the key ranges it wrote.
+   */
+  private void verifyAll() throws Exception {
+    LOG.info("Verifying " + totalRows.get() + " rows");
+    long start = System.nanoTime();
+    List<Future<long[]>> futures = new ArrayList<>(workers.length);
+    for (Worker worker : workers) {
+      futures.add(service.submit(worker::verify));
+    }
+    long checked = 0, missing = 0, corrupt = 0;
+    for (Future<long[]> future : futures) {
+      long[] counts = future.get();
+      checked += counts[0];
+      missing += counts[1];
+      corrupt += counts[2];
+    }
+    double elapsed_sec = (System.nanoTime() - start) / 1e9;
+    LOG.info("Verified " + checked + " rows in " + String.format("%.1f", elapsed_sec) + " seconds, "
+        + String.format("%.1f", checked / elapsed_sec) + " rows/sec, missing " + missing + ", corrupt " + corrupt);
+    if (missing > 0 || corrupt > 0) {
+      LOG.warning("Verification failed, " + (missing + corrupt) + " rows are missing or corrupt");
+    }
+  }
+
+  /**
+   * Run the same workload once per durability, and print their throughput and latency side by side.
+   * Latency compared is of batches in BATCH mode, of flushes otherwise, where WAL syncs are waited.
+   */
+  private void sweepDurability() throws Exception {
+    int rate = target_ops_per_sec.empty() ? 0 : target_ops_per_sec.value();
+    boolean batch = write_mode == WRITE_MODE.BATCH;
+    List<String> lines = new ArrayList<>();
+    lines.add(String.format("%-12s %12s %10s %10s %10s %10s %12s", "durability", "ops/sec",
+        "p50(us)", "p99(us)", "p99.9(us)", "max(us)", "resp_p99(us)"));
+    for (String name : durability_sweep.value()) {
+      if (stopped) {
+        break;
+      }
+      Durability d = Durability.valueOf(name.trim());
+      applyDurability(d);
+      long rows_before = totalRows.get();
+      double elapsed_sec = runPhase(rate, TimeUnit.SECONDS.toMillis(sweep_step_seconds.value()));
+      LatencyHistogram latency = merge(batch ? w -> w.batch_latency : w -> w.flush_latency);
+      report(d.name().toLowerCase() + (batch ? "-batch" : "-flush"), latency);
+      lines.add(String.format("%-12s %12.1f %10d %10d %10d %10d %12s", d, (totalRows.get() - rows_before) / elapsed_sec,
+          latency.getValueAtPercentile(50), latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9),
+          latency.getMax(), rate > 0 ? String.valueOf(merge(w -> w.response_latency).getValueAtPercentile(99)) : "-"));
+    }
+    LOG.info("Durability sweep of " + (batch ? "batch" : "flush") + " latency:\n" + String.join("\n", lines));
+  }
+
+  private void applyDurability(Durability d) throws IOException, InterruptedException {
+    if (durability_scope.value() == DURABILITY_SCOPE.PUT) {
+      put_durability = d == Durability.USE_DEFAULT ? null : d;
+      return;
+    }
+    HTableDescriptor descriptor = admin.getTableDescriptor(table);
+    descriptor.setDurability(d);
+    admin.modifyTable(table, descriptor);
+    // Regions are reopened asynchronously to take the new descriptor
+    Pair<Integer, Integer> status;
+    while ((status = admin.getAlterStatus(table)).getFirst() > 0) {
+      LOG.info(status.getFirst() + " of " + status.getSecond() + " regions of " + table + " are yet to be updated");
+      TimeUnit.SECONDS.sleep(1);
+    }
+    LOG.info("Durability of " + table + " is set to " + d);
+  }
+
+  /**
+   * Step the rate up from pw.target_ops_per_sec until p99 of response latency breaks the SLA.
+   * Response latency is measured from intended start time, so the stalls are not hidden by a slowed down client.
+   */
+  private void searchSaturation() throws Exception {
+    long sla_us = (long) (saturation_sla_p99_ms.value() * 1000);
+    int rate = target_ops_per_sec.value();
+    int last_good_rate = 0;
+    for (int step = 1; step <= saturation_max_steps.value() && !stopped; step++, rate += saturation_step_ops.value()) {
+      long rows_before = totalRows.get();
+      double elapsed_sec = runPhase(rate, TimeUnit.SECONDS.toMillis(saturation_step_seconds.value()));
+      LatencyHistogram response_latency = merge(w -> w.response_latency);
+      double achieved = (totalRows.get() - rows_before) / elapsed_sec;
+      long p99 = response_latency.getValueAtPercentile(99);
+      LOG.info("Step " + step + ": target " + rate + " ops/sec, achieved " + String.format("%.1f", achieved)
+          + " ops/sec, response latency (us): " + response_latency.toPercentileString());
+      if (p99 > sla_us) {
+        LOG.info("p99 " + p99 + "us breaks SLA " + sla_us + "us at " + rate + " ops/sec");
+        report("response", response_latency);
+        break;
+      }
+      last_good_rate = rate;
+    }
+    if (last_good_rate == 0) {
+      LOG.info("Even the starting rate " + target_ops_per_sec.value() + " ops/sec can't meet the SLA");
+    } else {
+      LOG.info("Highest rate meeting p99 SLA of " + saturation_sla_p99_ms.value() + "ms is " + last_good_rate + " ops/sec");
+    }
+  }
+
+  /**
+   * Run all workers until stopped or duration passed.
+   * @param ops_per_sec total rate across workers, 0 means no throttle
+   * @param duration_ms how long it runs, 0 means until stopped by timer or shutdown hook
+   * @return seconds it actually ran, until all workers finished
+   */
+  private double runPhase(int ops_per_sec, long duration_ms) throws Exception {
+    if (shared_mutators != null) {
+      for (int i = 0; i < shared_mutators.length; i++) {
+        shared_mutators[i] = shared_connections[i].getBufferedMutator(newMutatorParams());
+      }
+    }
+    long base_ns = System.nanoTime();
+    running = true;
+    List<Future<?>> futures = new ArrayList<>(workers.length);
+    for (int i = 0; i < workers.length; i++) {
+      workers[i].schedule(i, workers.length, ops_per_sec, base_ns);
+      futures.add(service.submit(workers[i]));
+    }
+
+    long deadline = System.currentTimeMillis() + duration_ms;
+    synchronized (mutex) {
+      while (!stopped) {
+        if (duration_ms <= 0) {
+          mutex.wait();
+          continue;
+        }
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          break;
+        }
+        mutex.wait(left);
+      }
+      running = false;
+    }
+
+    for (Future<?> future : futures) {
+      try {
+        future.get(30, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        LOG.warning("Worker doesn't stop in 30 seconds");
+      }
+    }
+    if (shared_mutators != null) {
+      for (BufferedMutator mutator : shared_mutators) {
+        mutator.close();
+      }
+    }
+    return (System.nanoTime() - base_ns) / 1e9;
+  }
+
+  /**
+   * @return ranges grouped into units that are dealt to threads as a whole, empty if no affinity
+   */
+  private List<List<KeyRange>> keyRangeUnits(AFFINITY affinity) throws IOException {
+    List<List<KeyRange>> units = new ArrayList<>();
+    if (affinity == AFFINITY.NONE) {
+      return units;
+    }
+    Map<ServerName, List<KeyRange>> by_server = new TreeMap<>();
+    try (RegionLocator locator = connection.getRegionLocator(table)) {
+      for (HRegionLocation location : locator.getAllRegionLocations()) {
+        KeyRange range = new KeyRange(location.getRegionInfo().getStartKey(), location.getRegionInfo().getEndKey());
+        if (affinity == AFFINITY.REGION) {
+          units.add(Collections.singletonList(range));
+        } else {
+          by_server.computeIfAbsent(location.getServerName(), k -> new ArrayList<>()).add(range);
+        }
+      }
+    }
+    units.addAll(by_server.values());
+    LOG.info("Threads are pinned to " + units.size() + (affinity == AFFINITY.REGION ? " regions" : " servers"));
+    return units;
+  }
+
+  /**
+   * With more threads than units, threads share a unit round-robin, otherwise units are dealt to threads.
+   */
+  private KeyRange[] assign(List<List<KeyRange>> units, int thread, int num_threads) {
+    List<KeyRange> assigned = new ArrayList<>();
+    if (num_threads >= units.size()) {
+      assigned.addAll(units.get(thread % units.size()));
+    } else {
+      for (int i = thread; i < units.size(); i += num_threads) {
+        assigned.addAll(units.get(i));
+      }
+    }
+    return assigned.toArray(new KeyRange[0]);
+  }
+
+  private BufferedMutatorParams newMutatorParams() {
+    BufferedMutatorParams param = new BufferedMutatorParams(table);
+    param.writeBufferSize(buffer_size.value());
+    return param;
+  }
+
+  private LatencyHistogram merge(Function<Worker, LatencyHistogram> which) {
+    LatencyHistogram merged = new LatencyHistogram(HIGHEST_LATENCY_US, LATENCY_PRECISION);
+    for (Worker worker : workers) {
+      merged.add(which.apply(worker));
+    }
+    return merged;
+  }
+
+  private ValueSize buildValueSize(ValueSize.TYPE type) {
+    switch (type) {
+      case FIXED:     return new ValueSize.Fixed(value_length.value());
+      case UNIFORM:   return new ValueSize.Uniform(value_min_length.value(), value_max_length.value());
+      case NORMAL:    return new ValueSize.Normal(value_length.value(), value_stddev.value(), value_max_length.value());
+      case HISTOGRAM: return ValueSize.Histogram.load(value_size_histogram.value());
+      default:        throw new IllegalArgumentException("Unsupported value size " + type);
+    }
+  }
+
+  private KeyDistribution buildKeyDistribution(KeyDistribution.TYPE type) {
+    switch (type) {
+      case SEQUENTIAL:        return new KeyDistribution.Sequential(0);
+      case UNIFORM:           return new KeyDistribution.Uniform(key_space.value());
+      case ZIPFIAN:           return new KeyDistribution.Zipfian(key_space.value(), zipfian_theta.value());
+      case SCRAMBLED_ZIPFIAN: return new KeyDistribution.ScrambledZipfian(key_space.value(), zipfian_theta.value());
+      case LATEST:            return new KeyDistribution.Latest(new KeyDistribution.Sequential(0), key_space.value(), zipfian_theta.value(), true);
+      case HOTSPOT:           return new KeyDistribution.Hotspot(key_space.value(), hotspot_data_fraction.value(), hotspot_op_fraction.value());
+      default:                throw new IllegalArgumentException("Unsupported key distribution " + type);
+    }
+  }
+
+  /**
+   * Rows acknowledged per region in BATCH mode, an uneven spread shows hot regions.
+   */
+  private void reportRegions() {
+    if (rows_by_region_name.isEmpty()) {
+      return;
+    }
+    List<Map.Entry<String, Long>> regions = new ArrayList<>();
+    rows_by_region_name.forEach((region, rows) -> regions.add(new AbstractMap.SimpleEntry<>(region, rows.sum())));
+    regions.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    LOG.info(regions.size() + " regions written, rows per region max " + regions.get(0).getValue()
+        + ", min " + regions.get(regions.size() - 1).getValue());
+    for (int i = 0; i < Math.min(REPORTED_REGIONS, regions.size()); i++) {
+      LOG.info("Region " + regions.get(i).getKey() + " got " + regions.get(i).getValue() + " rows");
+    }
+    failures_by_server.forEach((server, failures) -> LOG.info("Server " + server + " failed " + failures.sum() + " rows"));
+  }
+
+  private void report(String name, LatencyHistogram histogram) throws IOException {
+    LOG.info(name + " latency (us): " + histogram.toPercentileString());
+    if (!histogram_dir.empty()) {
+      Path file = Paths.get(histogram_dir.value(), getClass().getSimpleName() + "-" + name + "-" + start_ts + ".hgrm");
+      histogram.writeTo(file, 1.0);
+      LOG.info("Histogram of " + name + " latency is written to " + file);
+    }
+  }
+
   @Override
   protected void destroyToy() throws Exception {
     super.destroyToy();
     admin.close();
+    for (Connection conn : shared_connections) {
+      conn.close();
+    }
   }
 
   @Override protected String getParameterPrefix() {
@@ -168,49 +842,304 @@ public class PutWorker extends AbstractHBaseToy {
 
   class Worker implements Runnable {
 
-    Connection connection;
+    final int connection_index;
+    final long flush_threshold;
     long numberOfRows;
+    final KeyFormatter formatter = new KeyFormatter((KeyFormatter.PREFIX) key_prefix.value(), key_length.value());
+    final long worker_seed;
+    DataGenerator generator;
+    final LatencyHistogram mutate_latency = new LatencyHistogram(HIGHEST_LATENCY_US, LATENCY_PRECISION);
+    final LatencyHistogram flush_latency = new LatencyHistogram(HIGHEST_LATENCY_US, LATENCY_PRECISION);
+    final LatencyHistogram response_latency = new LatencyHistogram(HIGHEST_LATENCY_US, LATENCY_PRECISION);
+    final LatencyHistogram batch_latency = new LatencyHistogram(HIGHEST_LATENCY_US, LATENCY_PRECISION);
+    final LatencyRecorder recorder = put_meter.newRecorder();
+    // Key and value bytes of the last put built
+    int payload_bytes;
+    // Key ranges this worker is pinned to, null if not pinned
+    KeyRange[] ranges;
+    // Body of the last key, before it is placed in a range
+    byte[] body;
+    // Length of the last value generated
+    int value_length;
 
-    Worker(ToyConfiguration conf) throws IOException {
-      connection = createConnection(conf);
-      LOG.info("Connection created " + connection);
+    // Open-loop schedule, n-th put of this worker is intended to start at
+    // base_ns + (n * total_workers + index) * interval_ns, so workers interleave evenly.
+    int index;
+    int total_workers;
+    double interval_ns;
+    long base_ns;
+
+    Worker(int connection_index, int sharers) {
+      this.connection_index = connection_index;
+      // A shared write buffer is filled by all sharers, each worker sees a share of flushes.
+      this.flush_threshold = shared_mutators == null ? buffer_size.value() : buffer_size.value() / sharers;
+      this.worker_seed = seeds == null ? 0 : seeds.nextLong();
+      this.generator = newGenerator();
     }
 
-    Connection createConnection(ToyConfiguration conf) throws IOException {
-      Configuration hbase_conf = ConfigurationFactory.createHBaseConfiguration(conf);
-      return ConnectionFactory.createConnection(hbase_conf);
+    void schedule(int index, int total_workers, int ops_per_sec, long base_ns) {
+      this.index = index;
+      this.total_workers = total_workers;
+      this.interval_ns = ops_per_sec > 0 ? (double) TimeUnit.SECONDS.toNanos(1) / ops_per_sec : 0;
+      this.base_ns = base_ns;
+      numberOfRows = 0;
+      mutate_latency.reset();
+      flush_latency.reset();
+      response_latency.reset();
+      batch_latency.reset();
     }
 
     @Override
     public void run() {
-      BufferedMutator mutator = null;
-      BufferedMutatorParams param = new BufferedMutatorParams(table);
-      param.writeBufferSize(buffer_size.value());
       try {
-        mutator = connection.getBufferedMutator(param);
-        while (running) {
-          String k = ToyUtils.generateRandomString(key_length.value());
-          byte[] value = (kind == VALUE_KIND.FIXED) ?
-              ToyUtils.generateBase64Value(k) :
-              Bytes.toBytes(ToyUtils.generateRandomString(22));
-          Put put = new Put(Bytes.toBytes(k));
-          put.addColumn(
-              Bytes.toBytes(family.value()),
-              Bytes.toBytes("q"),
-              value
-          );
-          mutator.mutate(put);
-          numberOfRows++;
-        }
-        mutator.flush();
-        mutator.close();
+        if (write_mode == WRITE_MODE.BATCH) {
+          runBatches();
+        } else {
+          runMutator();
+        }
       } catch (IOException e) {
+        recorder.error();
         LOG.warning("Error occured " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       } finally {
         totalRows.addAndGet(numberOfRows);
       }
     }
 
+    private void runMutator() throws IOException {
+      BufferedMutator mutator = shared_mutators != null ? shared_mutators[connection_index] :
+          shared_connections[connection_index].getBufferedMutator(newMutatorParams());
+      long buffered_bytes = 0;
+      long start;
+      long intended = 0;
+      boolean paced = interval_ns > 0;
+      for (long n = 0; running; n++) {
+        if (paced && !waitUntil(intended = intendedStart(n))) {
+          break;
+        }
+        Put put = nextPut();
+        buffered_bytes += put.heapSize();
+        start = System.nanoTime();
+        mutator.mutate(put);
+        long end = System.nanoTime();
+        long elapsed_us = (end - start) / 1000;
+        mutate_latency.record(elapsed_us);
+        if (paced) {
+          // Measured from intended start, a late put carries the time it was held back by previous ones.
+          long response_us = (end - intended) / 1000;
+          response_latency.record(response_us);
+          recorder.record(response_us, payload_bytes);
+        } else {
+          recorder.record(elapsed_us, payload_bytes);
+        }
+        // BufferedMutator flushes within mutate() once its write buffer is full,
+        // such mutate is accounted as a flush as well.
+        if (buffered_bytes > flush_threshold) {
+          flush_latency.record(elapsed_us);
+          buffered_bytes = 0;
+        }
+        numberOfRows++;
+      }
+      start = System.nanoTime();
+      mutator.flush();
+      flush_latency.record((System.nanoTime() - start) / 1000);
+      if (shared_mutators == null) {
+        mutator.close();
+      }
+    }
+
+    /**
+     * Build batches by rows or bytes, and submit them with at most pw.batch_in_flight outstanding.
+     */
+    private void runBatches() throws InterruptedException {
+      Semaphore in_flight = new Semaphore(batch_in_flight.value());
+      List<Put> batch = new ArrayList<>(batch_rows.value());
+      long bytes = 0;
+      long batch_intended = 0;
+      boolean paced = interval_ns > 0;
+      for (long n = 0; running; n++) {
+        long intended = 0;
+        if (paced && !waitUntil(intended = intendedStart(n))) {
+          break;
+        }
+        if (batch.isEmpty()) {
+          batch_intended = paced ? intended : System.nanoTime();
+        }
+        batch.add(nextPut());
+        bytes += payload_bytes;
+        numberOfRows++;
+        if (batch.size() >= batch_rows.value() || (batch_bytes.value() > 0 && bytes >= batch_bytes.value())) {
+          submit(batch, bytes, batch_intended, in_flight);
+          batch = new ArrayList<>(batch_rows.value());
+          bytes = 0;
+        }
+      }
+      if (!batch.isEmpty()) {
+        submit(batch, bytes, batch_intended, in_flight);
+      }
+      // Wait for outstanding batches
+      in_flight.acquire(batch_in_flight.value());
+      in_flight.release(batch_in_flight.value());
+    }
+
+    private void submit(List<Put> batch, long bytes, long intended, Semaphore in_flight) throws InterruptedException {
+      in_flight.acquire();
+      batch_service.execute(() -> {
+        Map<byte[], Long> rows_by_region = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+        int errors = 0;
+        long start = System.nanoTime();
+        try (Table t = shared_connections[connection_index].getTable(table)) {
+          // Callback may be invoked from different threads, one per server
+          t.batchCallback(batch, new Object[batch.size()], (Batch.Callback<Object>) (region, row, result) -> {
+            synchronized (rows_by_region) {
+              rows_by_region.merge(region, 1L, Long::sum);
+            }
+          });
+        } catch (RetriesExhaustedWithDetailsException e) {
+          for (int i = 0; i < e.getNumExceptions(); i++) {
+            errors++;
+            failures_by_server.computeIfAbsent(e.getHostnamePort(i), k -> new LongAdder()).increment();
+          }
+          LOG.warning("Batch failed partially: " + e.getMessage());
+        } catch (IOException | InterruptedException e) {
+          errors++;
+          LOG.warning("Batch failed: " + e.getMessage());
+        } finally {
+          long end = System.nanoTime();
+          long batch_us = (end - start) / 1000;
+          long response_us = (end - intended) / 1000;
+          // Batches of a worker run on several threads, while its recorder is written by one at a time
+          synchronized (this) {
+            batch_latency.record(batch_us);
+            response_latency.record(response_us);
+            for (int i = 0; i < errors; i++) {
+              recorder.error();
+            }
+            recorder.record(interval_ns > 0 ? response_us : batch_us, bytes);
+          }
+          synchronized (rows_by_region) {
+            rows_by_region.forEach((region, rows) -> rows_by_region_name
+                .computeIfAbsent(Bytes.toStringBinary(region), k -> new LongAdder()).add(rows));
+          }
+          in_flight.release();
+        }
+      });
+    }
+
+    private long intendedStart(long n) {
+      return base_ns + (long) ((n * total_workers + index) * interval_ns);
+    }
+
+    /**
+     * @return false if stopped while waiting
+     */
+    private boolean waitUntil(long intended) {
+      long wait;
+      while ((wait = intended - System.nanoTime()) > 0 && running) {
+        LockSupport.parkNanos(wait);
+      }
+      return running;
+    }
+
+    /**
+     * Replay keys this worker wrote in the last phase, and check what is read back.
+     * @return rows checked, missing and corrupt
+     */
+    long[] verify() throws IOException {
+      long[] counts = new long[3];
+      int batch_size = verify_batch_rows.value();
+      List<Get> gets = new ArrayList<>(batch_size);
+      long[] checksums = new long[batch_size * qualifiers.length];
+      CRC32 crc = new CRC32();
+      generator = newGenerator();
+      try (Table t = shared_connections[connection_index].getTable(table)) {
+        for (long n = 0; n < numberOfRows; n++) {
+          byte[] key = nextKey();
+          // Get doesn't copy row, and body is a reused buffer
+          gets.add(new Get(key == body ? Bytes.copy(key) : key).addFamily(family_bytes));
+          for (int q = 0; q < qualifiers.length; q++) {
+            byte[] value = valueOf(key, q);
+            crc.reset();
+            crc.update(value, 0, value_length);
+            checksums[(gets.size() - 1) * qualifiers.length + q] = crc.getValue();
+          }
+          if (gets.size() == batch_size || n == numberOfRows - 1) {
+            Result[] results = t.get(gets);
+            for (int i = 0; i < results.length; i++) {
+              if (results[i].isEmpty()) {
+                counts[1]++;
+                continue;
+              }
+              for (int q = 0; q < qualifiers.length; q++) {
+                byte[] value = results[i].getValue(family_bytes, qualifiers[q]);
+                crc.reset();
+                if (value != null) {
+                  crc.update(value);
+                }
+                if (value == null || crc.getValue() != checksums[i * qualifiers.length + q]) {
+                  counts[2]++;
+                  LOG.warning("Corrupt row " + Bytes.toStringBinary(gets.get(i).getRow()) + " at " + Bytes.toString(qualifiers[q]));
+                  break;
+                }
+              }
+            }
+            counts[0] += results.length;
+            gets.clear();
+          }
+        }
+      }
+      return counts;
+    }
+
+    private DataGenerator newGenerator() {
+      double ratio = compression_ratio.empty() ? 0 : compression_ratio.value();
+      return new DataGenerator(seeds == null ? new SplittableRandom() : new SplittableRandom(worker_seed),
+          formatter.length(), value_sizes, ratio);
+    }
+
+    /**
+     * It is the only consumer of generator's random when seeded, so keys can be replayed.
+     * @return key of next put, its body is kept in {@link #body}
+     */
+    private byte[] nextKey() {
+      body = distribution_type == KeyDistribution.TYPE.RANDOM ?
+          formatter.random(generator) :
+          formatter.format(distribution.next(generator.random()));
+      return ranges == null ? body : ranges[generator.random().nextInt(ranges.length)].place(body);
+    }
+
+    /**
+     * @return value of a column in a reused array, its length is kept in {@link #value_length}
+     */
+    private byte[] valueOf(byte[] key, int column) {
+      if (kind == VALUE_KIND.FIXED) {
+        byte[] value = generator.encode(body);
+        value_length = value.length;
+        return value;
+      }
+      byte[] value = seeds == null ? generator.nextValue() : generator.valueOf(key, seed.value() + column);
+      value_length = generator.valueLength();
+      return value;
+    }
+
+    private Put nextPut() {
+      // Put copies row, and KeyValue copies value, so generator's buffers are safe to be reused.
+      byte[] key = nextKey();
+      Put put = new Put(key);
+      payload_bytes = key.length;
+      for (int q = 0; q < qualifiers.length; q++) {
+        byte[] value = valueOf(key, q);
+        put.addColumn(family_bytes, ByteBuffer.wrap(qualifiers[q]), HConstants.LATEST_TIMESTAMP,
+            ByteBuffer.wrap(value, 0, value_length));
+        payload_bytes += value_length;
+      }
+      if (put_durability != null) {
+        put.setDurability(put_durability);
+      }
+      return put;
+    }
+
   }
 
 }
@@ -17,11 +17,19 @@
 package org.apache.aries;
 
 import org.apache.aries.common.BoolParameter;
+import org.apache.aries.common.DoubleParameter;
+import org.apache.aries.common.DrainPlanner;
 import org.apache.aries.common.EnumParameter;
 import org.apache.aries.common.IntParameter;
+import org.apache.aries.common.MoveScheduler;
 import org.apache.aries.common.Parameter;
 import org.apache.aries.common.StringArrayParameter;
+import org.apache.aries.common.StringParameter;
+import org.apache.aries.common.UnavailabilityProbe;
+import org.apache.hadoop.hbase.ClusterStatus;
 import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.MetaTableAccessor;
 import org.apache.hadoop.hbase.ServerName;
 import org.apache.hadoop.hbase.client.Admin;
 import org.apache.hadoop.hbase.client.HConnectionManager;
@@ -29,11 +37,27 @@ import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class RegionsMover extends AbstractHBaseToy {
 
@@ -45,9 +69,71 @@ public class RegionsMover extends AbstractHBaseToy {
           .setDescription("These servers will be used for store the regions from target servers temporarily or permanently.").opt();
   private final Parameter<Integer> thread_pool_size =
       IntParameter.newBuilder("rm.threads_for_move_regions").setDefaultValue(8).setDescription("Number of threads for moving regions.").opt();
+  private final Parameter<Integer> max_moves_per_source =
+      IntParameter.newBuilder("rm.max_moves_per_source").setDefaultValue(4)
+          .setDescription("Regions moving out of a server at the same time at most").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> max_moves_per_target =
+      IntParameter.newBuilder("rm.max_moves_per_target").setDefaultValue(4)
+          .setDescription("Regions moving into a server at the same time at most").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> move_timeout_sec =
+      IntParameter.newBuilder("rm.move_timeout_sec").setDefaultValue(120)
+          .setDescription("Seconds for a region to be opened on target, before the attempt is counted as failed").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> move_attempts =
+      IntParameter.newBuilder("rm.move_attempts").setDefaultValue(3)
+          .setDescription("Attempts to move a region before giving it up").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> retry_backoff_ms =
+      IntParameter.newBuilder("rm.retry_backoff_ms").setDefaultValue(1000)
+          .setDescription("Backoff before retrying a failed move, it doubles every retry").addConstraint(v -> v >= 0).opt();
   private final Parameter<Enum> move_or_reload =
       EnumParameter.newBuilder("rm.move_or_reload", MODE.RELOAD, MODE.class)
           .setDescription("MOVE: move regions from A to B. RELOAD: move regions from A to B, then from B to A.").opt();
+  private final Parameter<Enum> plan =
+      EnumParameter.newBuilder("rm.plan", PLAN.PAIR, PLAN.class)
+          .setDescription("PAIR: regions of source_servers[i] go to target_servers[i]. SPREAD: regions of every source server "
+                          + "are spread over all target servers, weighted by their region count, request rate and memstore size").opt();
+  private final Parameter<Integer> max_regions_per_target =
+      IntParameter.newBuilder("rm.max_regions_per_target")
+          .setDescription("Regions a target server may hold in total when spreading, regions beyond stay on source").addConstraint(v -> v > 0).opt();
+  private final Parameter<Double> weight_regions =
+      DoubleParameter.newBuilder("rm.weight_regions").setDefaultValue(1.0)
+          .setDescription("Weight of region count of a target when spreading").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Double> weight_requests =
+      DoubleParameter.newBuilder("rm.weight_requests").setDefaultValue(1.0)
+          .setDescription("Weight of request rate of a target when spreading").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Double> weight_memstore =
+      DoubleParameter.newBuilder("rm.weight_memstore").setDefaultValue(1.0)
+          .setDescription("Weight of memstore size of a target when spreading").addConstraint(v -> v >= 0).opt();
+  private final Parameter<Boolean> unattended =
+      BoolParameter.newBuilder("rm.unattended", false)
+          .setDescription("Rolling restart without prompting, applies to RELOAD and ignores batch_move. Each source server is drained, "
+                          + "restarted by restart_command or by someone else, and reloaded once it serves with a new start code").opt();
+  private final Parameter<String> restart_command =
+      StringParameter.newBuilder("rm.restart_command")
+          .setDescription("Shell command restarting a server when unattended, %h is replaced by its host. Without it, servers are waited to be restarted").opt();
+  private final Parameter<Integer> restart_timeout_sec =
+      IntParameter.newBuilder("rm.restart_timeout_sec").setDefaultValue(1800)
+          .setDescription("Seconds for a drained server to come back when unattended").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> restart_poll_sec =
+      IntParameter.newBuilder("rm.restart_poll_sec").setDefaultValue(5)
+          .setDescription("Interval of polling cluster status for restarted servers").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> max_servers_down =
+      IntParameter.newBuilder("rm.max_servers_down").setDefaultValue(1)
+          .setDescription("Servers drained or restarting at the same time when unattended").addConstraint(v -> v > 0).opt();
+  private final Parameter<String> checkpoint_file =
+      StringParameter.newBuilder("rm.checkpoint_file")
+          .setDescription("File recording rolling restart progress when unattended, a rerun with it resumes and skips servers done").opt();
+  private final Parameter<Boolean> probe =
+      BoolParameter.newBuilder("rm.probe", false)
+          .setDescription("Probe start key of every moving region, and report how long regions are unavailable to clients").opt();
+  private final Parameter<Integer> probe_interval_ms =
+      IntParameter.newBuilder("rm.probe_interval_ms").setDefaultValue(10)
+          .setDescription("Interval between probes of a moving region").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> probe_slow_ms =
+      IntParameter.newBuilder("rm.probe_slow_ms").setDefaultValue(100)
+          .setDescription("A probe slower than this is counted as unavailable").addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> probe_linger_sec =
+      IntParameter.newBuilder("rm.probe_linger_sec").setDefaultValue(30)
+          .setDescription("Seconds to keep probing a moved region until a probe succeeds").addConstraint(v -> v > 0).opt();
   private final Parameter<Boolean> batch_move =
       BoolParameter.newBuilder("rm.batch_move", false).setDescription("By default move is one pair by one pair, set true to run in batch. This only applies to RELOAD").opt();
 
@@ -55,6 +141,10 @@ public class RegionsMover extends AbstractHBaseToy {
     MOVE, RELOAD
   }
 
+  enum PLAN {
+    PAIR, SPREAD
+  }
+
   @Override protected String getParameterPrefix() {
     return "rm";
   }
@@ -63,102 +153,305 @@ public class RegionsMover extends AbstractHBaseToy {
     requisites.add(source_servers);
     requisites.add(target_servers);
     requisites.add(thread_pool_size);
+    requisites.add(max_moves_per_source);
+    requisites.add(max_moves_per_target);
+    requisites.add(move_timeout_sec);
+    requisites.add(move_attempts);
+    requisites.add(retry_backoff_ms);
     requisites.add(move_or_reload);
     requisites.add(batch_move);
+    requisites.add(plan);
+    requisites.add(max_regions_per_target);
+    requisites.add(weight_regions);
+    requisites.add(weight_requests);
+    requisites.add(weight_memstore);
+    requisites.add(unattended);
+    requisites.add(restart_command);
+    requisites.add(restart_timeout_sec);
+    requisites.add(restart_poll_sec);
+    requisites.add(max_servers_down);
+    requisites.add(checkpoint_file);
+    requisites.add(probe);
+    requisites.add(probe_interval_ms);
+    requisites.add(probe_slow_ms);
+    requisites.add(probe_linger_sec);
   }
 
   @Override protected void exampleConfiguration() {
     example(source_servers.key(), "source_server_1.com:5678,source_server_2.com:5678");
     example(target_servers.key(), "target_server_1.com:5678,target_server_2.com:5678");
     example(thread_pool_size.key(), "8");
+    example(max_moves_per_source.key(), "4");
+    example(max_moves_per_target.key(), "4");
+    example(move_timeout_sec.key(), "120");
     example(move_or_reload.key(), "RELOAD");
     example(batch_move.key(), "false");
+    example(plan.key(), "PAIR");
+    example(unattended.key(), "true");
+    example(restart_command.key(), "ssh %h sudo systemctl restart hbase-regionserver");
+    example(max_servers_down.key(), "1");
+    example(checkpoint_file.key(), "/tmp/rolling_restart.checkpoint");
+    example(probe.key(), "true");
   }
 
   Admin admin;
-  ExecutorService pool;
+  MoveScheduler scheduler;
+  // Host and port of servers in a rolling restart cycle
+  private final Set<String> cycling = new HashSet<>();
+  UnavailabilityProbe prober;
   MODE mode;
 
   @Override protected void buildToy(ToyConfiguration configuration) throws Exception {
     super.buildToy(configuration);
     admin = connection.getAdmin();
-    pool = Executors.newFixedThreadPool(thread_pool_size.value());
+    scheduler = new MoveScheduler(connection, thread_pool_size.value(), max_moves_per_source.value(),
+        max_moves_per_target.value(), TimeUnit.SECONDS.toMillis(move_timeout_sec.value()), move_attempts.value(),
+        retry_backoff_ms.value());
+    if (probe.value()) {
+      prober = new UnavailabilityProbe(connection.getConfiguration(), probe_interval_ms.value(), probe_slow_ms.value(),
+          TimeUnit.SECONDS.toMillis(probe_linger_sec.value()));
+      scheduler.setListener(prober);
+    }
     mode = (MODE) move_or_reload.value();
     LOG.info("Using mode: " + mode.name());
   }
 
   @Override
   protected void midCheck() {
-    if (target_servers.value().length != source_servers.value().length) {
+    if (plan.value() == PLAN.SPREAD) {
+      for (String target : target_servers.value()) {
+        if (Arrays.asList(source_servers.value()).contains(target)) {
+          throw new IllegalArgumentException("Server " + target + " can not be both source and target when spreading");
+        }
+      }
+    } else if (target_servers.value().length != source_servers.value().length) {
       throw new IllegalArgumentException("Target servers size should be equal to temp servers size");
     }
   }
 
   @Override protected int haveFun() throws Exception {
-    ServerName source;
-    ServerName target;
-    List<HRegionInfo> regions;
-
     int size = source_servers.value().length;
+    boolean succeeded = true;
+    DrainPlanner planner;
     switch (mode) {
       case MOVE: {
+        planner = newPlanner();
         for (int i = 0; i < size; i++) {
-          source = findServer(source_servers.value()[i]);
-          target = findServer(target_servers.value()[i]);
-          regions = ProtobufUtil.getOnlineRegions(HConnectionManager.getConnection(connection.getConfiguration()).getAdmin(source));
-          LOG.info("There are " + regions.size() + " regions on " + source);
-          unloadRegionsTo(regions, target);
+          succeeded &= unloadRegions(planUnload(i, planner));
         }
+        // Regions left for lack of budget are not drained
+        succeeded &= planner == null || planner.unplaced() == 0;
         break;
       }
       case RELOAD: {
-        if (batch_move.value()) {{
+        if (unattended.value()) {
+          succeeded = rollingRestart();
+        } else if (batch_move.value()) {
+          planner = newPlanner();
+          List<List<MoveScheduler.Move>> unloaded = new ArrayList<>(size);
           for (int i = 0; i < size; i++) {
-            source = findServer(source_servers.value()[i]);
-            target = findServer(target_servers.value()[i]);
-            regions = ProtobufUtil.getOnlineRegions(HConnectionManager.getConnection(connection.getConfiguration()).getAdmin(source));
-            LOG.info("There are " + regions.size() + " regions on " + source);
-            unloadRegionsTo(regions, target);
+            List<MoveScheduler.Move> moves = planUnload(i, planner);
+            succeeded &= unloadRegions(moves);
+            unloaded.add(moves);
           }
           promptForConfirm();
           for (int i = 0; i < size; i++) {
-            source = findServer(source_servers.value()[i]);
-            target = findServer(target_servers.value()[i]);
-            regions = ProtobufUtil.getOnlineRegions(HConnectionManager.getConnection(connection.getConfiguration()).getAdmin(target));
-            reloadRegionsTo(regions, source);
-          }
-        }
-          for (int i = 0; i < size; i++) {
-            source = findServer(source_servers.value()[i]);
-            target = findServer(target_servers.value()[i]);
-            regions = ProtobufUtil.getOnlineRegions(HConnectionManager.getConnection(connection.getConfiguration()).getAdmin(source));
-            LOG.info("There are " + regions.size() + " regions on " + source);
-            unloadRegionsTo(regions, target);
-          }
-          promptForConfirm();
-          for (int i = 0; i < size; i++) {
-            source = findServer(source_servers.value()[i]);
-            target = findServer(target_servers.value()[i]);
-            regions = ProtobufUtil.getOnlineRegions(HConnectionManager.getConnection(connection.getConfiguration()).getAdmin(target));
-            reloadRegionsTo(regions, source);
+            succeeded &= reloadRegions(unloaded.get(i), findServer(source_servers.value()[i]));
           }
         } else {
           for (int i = 0; i < size; i++) {
-            source = findServer(source_servers.value()[i]);
-            target = findServer(target_servers.value()[i]);
-            regions = ProtobufUtil.getOnlineRegions(HConnectionManager.getConnection(connection.getConfiguration()).getAdmin(source));
-            LOG.info("There are " + regions.size() + " regions on " + source);
-            unloadRegionsTo(regions, target);
+            // Loads change after every reload, so plan on fresh loads
+            List<MoveScheduler.Move> moves = planUnload(i, newPlanner());
+            succeeded &= unloadRegions(moves);
             promptForConfirm();
             // in case source is restarted
-            source = findServer(source_servers.value()[i]);
-            reloadRegionsTo(regions, source);
+            succeeded &= reloadRegions(moves, findServer(source_servers.value()[i]));
           }
         }
         break;
       }
     }
-    return RETURN_CODE.SUCCESS.code();
+    if (prober != null) {
+      prober.report();
+    }
+    return succeeded ? RETURN_CODE.SUCCESS.code() : RETURN_CODE.FAILURE.code();
+  }
+
+  /**
+   * @return a planner spreading regions over all target servers, null when servers are paired
+   */
+  private DrainPlanner newPlanner() throws IOException {
+    if (plan.value() != PLAN.SPREAD) {
+      return null;
+    }
+    List<ServerName> targets = new ArrayList<>();
+    for (String target : target_servers.value()) {
+      targets.add(findServer(target));
+    }
+    return new DrainPlanner(clusterStatus(), targets,
+        max_regions_per_target.empty() ? Integer.MAX_VALUE : max_regions_per_target.value(),
+        weight_regions.value(), weight_requests.value(), weight_memstore.value());
+  }
+
+  private List<MoveScheduler.Move> planUnload(int i, DrainPlanner planner) throws IOException {
+    return planUnload(i, planner, Collections.emptySet());
+  }
+
+  /**
+   * @param excluded host and port of servers not to spread to
+   */
+  private List<MoveScheduler.Move> planUnload(int i, DrainPlanner planner, Collection<String> excluded) throws IOException {
+    ServerName source = findServer(source_servers.value()[i]);
+    List<HRegionInfo> regions = onlineRegions(source);
+    LOG.info("There are " + regions.size() + " regions on " + source);
+    if (planner != null) {
+      // Shared by servers restarting in parallel
+      synchronized (planner) {
+        return planner.plan(source, regions, excluded);
+      }
+    }
+    ServerName target = findServer(target_servers.value()[i]);
+    List<MoveScheduler.Move> moves = new ArrayList<>(regions.size());
+    for (HRegionInfo region : regions) {
+      moves.add(new MoveScheduler.Move(region, source, target));
+    }
+    return moves;
+  }
+
+  private List<HRegionInfo> onlineRegions(ServerName server) throws IOException {
+    return ProtobufUtil.getOnlineRegions(HConnectionManager.getConnection(connection.getConfiguration()).getAdmin(server));
+  }
+
+  /**
+   * Drains, restarts and reloads source servers without prompting, at most max_servers_down of them at a time.
+   * Servers cycling at the same time share one planner, so budgets of targets hold across them.
+   */
+  private boolean rollingRestart() throws Exception {
+    Checkpoint checkpoint = new Checkpoint(checkpoint_file.empty() ? null : Paths.get(checkpoint_file.value()));
+    DrainPlanner planner = newPlanner();
+    int size = source_servers.value().length;
+    ExecutorService cycles = Executors.newFixedThreadPool(max_servers_down.value());
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        final int index = i;
+        futures.add(cycles.submit(() -> restart(index, checkpoint, planner)));
+      }
+      boolean succeeded = true;
+      for (int i = 0; i < size; i++) {
+        try {
+          succeeded &= futures.get(i).get();
+        } catch (ExecutionException e) {
+          LOG.warning("Rolling restart of " + source_servers.value()[i] + " failed: " + e.getCause());
+          succeeded = false;
+        }
+      }
+      return succeeded;
+    } finally {
+      cycles.shutdownNow();
+    }
+  }
+
+  /**
+   * @return true if server is restarted and all of its regions are back
+   */
+  private boolean restart(int i, Checkpoint checkpoint, DrainPlanner planner) throws Exception {
+    String server = source_servers.value()[i];
+    if (checkpoint.isDone(server)) {
+      LOG.info(server + " is restarted in checkpoint, skipped");
+      return true;
+    }
+    List<String> claimed = claim(i);
+    try {
+      ServerName source = onlineServer(server);
+      List<MoveScheduler.Move> moves = checkpoint.planned(server);
+      long start_code;
+      if (moves == null) {
+        List<String> excluded;
+        synchronized (cycling) {
+          excluded = new ArrayList<>(cycling);
+        }
+        moves = planUnload(i, planner, excluded);
+        start_code = source.getStartcode();
+        checkpoint.plan(source, moves);
+      } else {
+        start_code = checkpoint.startCode(server);
+        LOG.info("Resume " + server + " from checkpoint with " + moves.size() + " regions planned");
+      }
+      // Unloading again is a no-op for regions on target already
+      if (source != null && source.getStartcode() == start_code && !unloadRegions(moves)) {
+        LOG.warning("Not all regions are unloaded from " + server + ", it is not restarted");
+        return false;
+      }
+      ServerName restarted = waitForRestart(server, start_code);
+      if (!reloadRegions(moves, restarted)) {
+        return false;
+      }
+      if (planner != null) {
+        synchronized (planner) {
+          planner.release(moves);
+        }
+      }
+      checkpoint.done(server);
+      return true;
+    } finally {
+      synchronized (cycling) {
+        cycling.removeAll(claimed);
+        cycling.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Waits until no other cycle drains, restarts or fills servers of this one, then claims them. Targets paired with
+   * a source are claimed too, while spread targets are never sources, so they are only kept out of plans.
+   * @return host and port of servers claimed
+   */
+  private List<String> claim(int i) throws InterruptedException {
+    List<String> servers = new ArrayList<>(2);
+    servers.add(source_servers.value()[i]);
+    if (plan.value() != PLAN.SPREAD) {
+      servers.add(target_servers.value()[i]);
+    }
+    synchronized (cycling) {
+      while (!Collections.disjoint(cycling, servers)) {
+        cycling.wait();
+      }
+      cycling.addAll(servers);
+    }
+    return servers;
+  }
+
+  /**
+   * Runs restart command if any, then waits for server to come back with a new start code.
+   */
+  private ServerName waitForRestart(String server, long start_code) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(restart_timeout_sec.value());
+    boolean restarting = false;
+    while (true) {
+      ServerName current = onlineServer(server);
+      if (current != null && current.getStartcode() != start_code) {
+        LOG.info(server + " is serving again with start code " + current.getStartcode());
+        return current;
+      }
+      if (!restarting) {
+        if (restart_command.empty()) {
+          LOG.info("Waiting for " + server + " to be restarted");
+        } else if (current != null) {
+          String command = restart_command.value().replace("%h", server.substring(0, server.lastIndexOf(':')));
+          LOG.info("Restarting " + server + ": " + command);
+          int code = new ProcessBuilder("sh", "-c", command).inheritIO().start().waitFor();
+          if (code != 0) {
+            throw new IOException("Restart command of " + server + " exits with " + code);
+          }
+        }
+        restarting = true;
+      }
+      if (System.nanoTime() > deadline) {
+        throw new TimeoutException(server + " is not restarted in " + restart_timeout_sec.value() + " sec");
+      }
+      TimeUnit.SECONDS.sleep(restart_poll_sec.value());
+    }
   }
 
   private void promptForConfirm() {
@@ -173,45 +466,141 @@ public class RegionsMover extends AbstractHBaseToy {
   }
 
   private ServerName findServer(String server) throws IOException {
-    for (ServerName sn : admin.getClusterStatus().getServers()) {
-      if (sn.getHostAndPort().equals(server)) {
+    ServerName sn = onlineServer(server);
+    if (sn == null) {
+      throw new IllegalStateException("Server " + server + " is not online");
+    }
+    return sn;
+  }
+
+  /**
+   * @return server of host and port serving now, null if it is not online
+   */
+  private ServerName onlineServer(String server) throws IOException {
+    ClusterStatus status = clusterStatus();
+    for (ServerName sn : status.getServers()) {
+      if (sn.getHostAndPort().equals(server) && status.getLoad(sn) != null) {
         return sn;
       }
     }
     return null;
   }
 
-  private void unloadRegionsTo(List<HRegionInfo> regions, ServerName server) throws Exception {
-    move(regions, server);
-    LOG.info("Unload regions finished!");
+  private synchronized ClusterStatus clusterStatus() throws IOException {
+    // Admin is shared by servers restarting in parallel
+    return admin.getClusterStatus();
   }
 
-  private void reloadRegionsTo(List<HRegionInfo> regions,ServerName server) throws Exception {
-    // Like it is restarted, startcode will get updated.
-    move(regions, server);
-    LOG.info("Reload regions finished!");
+  private boolean unloadRegions(List<MoveScheduler.Move> moves) throws Exception {
+    return move(moves, "Unload regions");
   }
 
-  private void move(List<HRegionInfo> regions, ServerName target) {
-    AtomicInteger moved = new AtomicInteger(regions.size());
-    for (HRegionInfo region : regions) {
-      pool.submit(() -> {
-        try {
-          LOG.info("Moving " + region.getEncodedName() + " to " + target.getServerName());
-          admin.move(region.getEncodedNameAsBytes(), Bytes.toBytes(target.getServerName()));
-          LOG.info("Moved " + region.getEncodedName() + " to " + target.getServerName());
-          moved.decrementAndGet();
-        } catch (IOException e) {
-          LOG.info("Error in moving " + region.getEncodedName());
-        }
-      });
+  private boolean reloadRegions(List<MoveScheduler.Move> unloaded, ServerName source) throws Exception {
+    // Like it is restarted, startcode will get updated.
+    List<MoveScheduler.Move> moves = new ArrayList<>(unloaded.size());
+    for (MoveScheduler.Move move : unloaded) {
+      moves.add(new MoveScheduler.Move(move.region(), move.target(), source));
     }
-    while (moved.get() != 0);
+    return move(moves, "Reload regions");
+  }
+
+  /**
+   * @return true if every region is on target
+   */
+  private boolean move(List<MoveScheduler.Move> moves, String what) throws Exception {
+    MoveScheduler.Report report = scheduler.move(moves);
+    report.log(what);
+    return report.failed().isEmpty();
   }
 
   @Override protected void destroyToy() throws Exception {
+    scheduler.close();
+    if (prober != null) {
+      prober.close();
+    }
     admin.close();
     super.destroyToy();
   }
 
+  /**
+   * Progress of rolling restart, appended to a file as tab separated lines, so a crashed run resumes where it stopped.
+   * A server's plan is written before it is drained, as a PLANNED line of its start code followed by a REGION line
+   * per region and host and port of its target. A DONE line is written once its regions are reloaded. No file means no checkpoint.
+   */
+  private final class Checkpoint {
+
+    private final Path file;
+    private final Set<String> done = new HashSet<>();
+    private final Map<String, Long> start_codes = new HashMap<>();
+    private final Map<String, List<String[]>> regions = new HashMap<>();
+
+    Checkpoint(Path file) throws IOException {
+      this.file = file;
+      if (file == null || !Files.exists(file)) {
+        return;
+      }
+      for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        String[] fields = line.split("\t");
+        switch (fields[0]) {
+          case "PLANNED": start_codes.put(fields[1], Long.parseLong(fields[2])); regions.put(fields[1], new ArrayList<>()); break;
+          case "REGION":  regions.get(fields[1]).add(new String[] { fields[2], fields[3] }); break;
+          case "DONE":    done.add(fields[1]); break;
+          default: throw new IllegalArgumentException("Unknown line '" + line + "' in checkpoint " + file);
+        }
+      }
+      LOG.info("Checkpoint " + file + " has " + done.size() + " servers restarted, " + start_codes.size() + " planned");
+    }
+
+    boolean isDone(String server) {
+      return done.contains(server);
+    }
+
+    long startCode(String server) {
+      return start_codes.get(server);
+    }
+
+    /**
+     * @return planned moves of server, regions split or merged since are dropped, null if not planned yet
+     */
+    List<MoveScheduler.Move> planned(String server) throws IOException {
+      List<String[]> planned = regions.get(server);
+      if (planned == null) {
+        return null;
+      }
+      List<MoveScheduler.Move> moves = new ArrayList<>(planned.size());
+      for (String[] region : planned) {
+        HRegionLocation location = MetaTableAccessor.getRegionLocation(connection, Bytes.toBytesBinary(region[0]));
+        if (location == null) {
+          LOG.warning("Region " + region[0] + " is gone, it is not moved");
+          continue;
+        }
+        // Target may have restarted since, so it is resolved by host and port
+        String target = region[1].indexOf(',') < 0 ? region[1] : ServerName.valueOf(region[1]).getHostAndPort();
+        moves.add(new MoveScheduler.Move(location.getRegionInfo(), location.getServerName(), findServer(target)));
+      }
+      return moves;
+    }
+
+    void plan(ServerName server, List<MoveScheduler.Move> moves) throws IOException {
+      List<String> lines = new ArrayList<>(moves.size() + 1);
+      lines.add("PLANNED\t" + server.getHostAndPort() + "\t" + server.getStartcode());
+      for (MoveScheduler.Move move : moves) {
+        lines.add("REGION\t" + server.getHostAndPort() + "\t" + Bytes.toStringBinary(move.region().getRegionName())
+                  + "\t" + move.target().getHostAndPort());
+      }
+      append(lines);
+    }
+
+    void done(String server) throws IOException {
+      append(Collections.singletonList("DONE\t" + server));
+    }
+
+    private synchronized void append(List<String> lines) throws IOException {
+      if (file != null) {
+        Files.write(file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      }
+    }
+
+  }
+
 }
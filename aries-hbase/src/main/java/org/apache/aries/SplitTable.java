@@ -17,29 +17,49 @@
 package org.apache.aries;
 
 import org.apache.aries.common.Constants;
+import org.apache.aries.common.EnumParameter;
 import org.apache.aries.common.IntParameter;
 import org.apache.aries.common.Parameter;
-import org.apache.aries.common.RegionInfo;
+import org.apache.aries.common.BoolParameter;
+import org.apache.aries.common.RegionMetrics;
+import org.apache.aries.common.SplitScheduler;
 import org.apache.aries.common.StringArrayParameter;
 import org.apache.aries.common.StringParameter;
-import org.apache.aries.common.TableInfo;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.ClusterStatus;
 import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.RandomRowFilter;
 import org.apache.hadoop.hbase.util.Bytes;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 public class SplitTable extends AbstractHBaseToy {
 
   private final Parameter<String> split_table_url =
-      StringParameter.newBuilder("st.url").setDescription("The pages of the table. Please copy from HBase Web UI").opt();
+      StringParameter.newBuilder("st.url").setDescription("Deprecated, use st.split_by_size. The table page of HBase Web UI, "
+                                                          + "regions of the table above threshold are split").opt();
+  private final Parameter<Boolean> split_by_size =
+      BoolParameter.newBuilder("st.split_by_size", false)
+                   .setDescription("Only split regions above threshold of st.table_name tables, otherwise every region is split").opt();
   private final Parameter<Integer> split_size_threshold =
       IntParameter.newBuilder("st.merge_threshold_megabytes").setDefaultValue(10240)
                   .setDescription("Regions above this threshold will be splited, unit in MB").opt();
@@ -51,6 +71,47 @@ public class SplitTable extends AbstractHBaseToy {
       StringArrayParameter.newBuilder("st.regions_of_table")
           .setDescription("Regions's encoded names of a table, delimited by ','. If specified, st.table_name size must be 1.")
           .opt();
+  private final Parameter<Integer> max_splits_per_server =
+      IntParameter.newBuilder("st.max_splits_per_server").setDefaultValue(2)
+                  .setDescription("Splits in flight on a region server at most, a split holds its slot until daughters are online")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> max_splits =
+      IntParameter.newBuilder("st.max_splits").setDefaultValue(16)
+                  .setDescription("Splits in flight in cluster at most")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> split_timeout_sec =
+      IntParameter.newBuilder("st.split_timeout_sec").setDefaultValue(300)
+                  .setDescription("Seconds for a split to have its daughters online, before it is counted as failed")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> poll_interval_ms =
+      IntParameter.newBuilder("st.poll_interval_ms").setDefaultValue(1000)
+                  .setDescription("Interval of polling meta for daughters of splits in flight")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Enum> split_point =
+      EnumParameter.newBuilder("st.split_point", SPLIT_POINT.MIDPOINT, SPLIT_POINT.class)
+                   .setDescription("How split points are chosen, MIDPOINT by region server, or by quantiles of rows sampled "
+                                   + "from the region weighted by ROWS, SIZE or RECENT_WRITES").opt();
+  private final Parameter<Integer> split_pieces =
+      IntParameter.newBuilder("st.split_pieces").setDefaultValue(2)
+                  .setDescription("Pieces a region is split into by sampled split points, daughters are split again "
+                                  + "once they are compacted")
+                  .addConstraint(v -> v >= 2).opt();
+  private final Parameter<Integer> sample_stride =
+      IntParameter.newBuilder("st.sample_stride").setDefaultValue(100)
+                  .setDescription("One of this many rows is sampled on average, others are skipped at server side")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> max_samples =
+      IntParameter.newBuilder("st.max_samples").setDefaultValue(100000)
+                  .setDescription("Samples kept of a region at most, adjacent samples are merged beyond it")
+                  .addConstraint(v -> v >= 2).opt();
+  private final Parameter<Integer> recent_write_sec =
+      IntParameter.newBuilder("st.recent_write_sec").setDefaultValue(3600)
+                  .setDescription("Rows written within this many seconds are counted by RECENT_WRITES, others are not")
+                  .addConstraint(v -> v > 0).opt();
+  private final Parameter<Integer> status_interval_sec =
+      IntParameter.newBuilder("st.status_interval_sec").setDefaultValue(10)
+                  .setDescription("Interval of sampling compactions from cluster status")
+                  .addConstraint(v -> v > 0).opt();
 
   @Override protected String getParameterPrefix() {
     return "st";
@@ -58,22 +119,41 @@ public class SplitTable extends AbstractHBaseToy {
 
   @Override protected void requisite(List<Parameter> requisites) {
     requisites.add(split_table_url);
+    requisites.add(split_by_size);
     requisites.add(split_size_threshold);
     requisites.add(tables);
     requisites.add(regions);
+    requisites.add(max_splits_per_server);
+    requisites.add(max_splits);
+    requisites.add(split_timeout_sec);
+    requisites.add(poll_interval_ms);
+    requisites.add(status_interval_sec);
+    requisites.add(split_point);
+    requisites.add(split_pieces);
+    requisites.add(sample_stride);
+    requisites.add(max_samples);
+    requisites.add(recent_write_sec);
   }
 
   @Override protected void exampleConfiguration() {
-    example(split_table_url.key(), "http://host:port/table.jsp?name=namespace:table");
+    example(split_by_size.key(), "true");
     example(split_size_threshold.key(), "10240");
     example(tables.key(), "ns1:t1");
     example(regions.key(), "24221b13bcd6c3f86c75c64ebdf688f2,28e8df1df7540441e125bd8d748252b0");
+    example(max_splits_per_server.key(), "2");
+    example(max_splits.key(), "16");
+    example(split_point.key(), "ROWS");
+    example(split_pieces.key(), "2");
   }
 
   Admin admin;
+  SplitScheduler scheduler;
   @Override protected void buildToy(ToyConfiguration configuration) throws Exception {
     super.buildToy(configuration);
     admin = connection.getAdmin();
+    scheduler = new SplitScheduler(connection, max_splits_per_server.value(), max_splits.value(),
+                                   TimeUnit.SECONDS.toMillis(split_timeout_sec.value()), poll_interval_ms.value(),
+                                   TimeUnit.SECONDS.toMillis(status_interval_sec.value()));
 
     if (!split_size_threshold.empty()) {
       threshold_bytes = split_size_threshold.value() * Constants.ONE_MB;
@@ -84,57 +164,179 @@ public class SplitTable extends AbstractHBaseToy {
     if (!regions.empty() && tables.value().length > 1) {
       throw new IllegalArgumentException("When " + regions.key() + " is set, we can split only one table at one time only, for safety concerns");
     }
+    if (split_point.value() == SPLIT_POINT.MIDPOINT && split_pieces.value() > 2) {
+      throw new IllegalArgumentException(split_pieces.key() + " needs sampled split points of " + split_point.key());
+    }
+  }
+
+  /**
+   * Weight of a sampled row when split points are chosen by quantiles. Per-row request counts are not kept by
+   * HBase, RECENT_WRITES counts rows whose first cell is newer than st.recent_write_sec instead.
+   */
+  enum SPLIT_POINT {
+    MIDPOINT, ROWS, SIZE, RECENT_WRITES
   }
 
   long threshold_bytes;
 
   @Override protected int haveFun() throws Exception {
+    List<SplitScheduler.Split> splits = new ArrayList<>();
     if (!regions.empty()) {
-      String table = tables.value()[0];
-      for (String region : regions.value()) {
-        LOG.info("Splitting table " + table + "'s region " + region);
-        admin.splitRegion(Bytes.toBytes(region));
+      TableName table = TableName.valueOf(tables.value()[0]);
+      Set<String> wanted = new HashSet<>(Arrays.asList(regions.value()));
+      for (HRegionLocation location : locations(table)) {
+        if (wanted.remove(location.getRegionInfo().getEncodedName())) {
+          splits.add(newSplit(location));
+        }
       }
-      return RETURN_CODE.SUCCESS.code();
+      if (!wanted.isEmpty()) {
+        LOG.warning("Regions " + wanted + " are not found in table " + table);
+      }
+      return split(splits) && wanted.isEmpty() ? RETURN_CODE.SUCCESS.code() : RETURN_CODE.FAILURE.code();
     }
 
+    List<TableName> pending = new ArrayList<>();
     if (!split_table_url.empty()) {
       int start = split_table_url.value().indexOf("=") + 1;
-      TableName table = TableName.valueOf(split_table_url.value().substring(start));
-      List<HRegionInfo> regions = admin.getTableRegions(table);
-      Document doc = Jsoup.connect(split_table_url.value()).get();
-      Element element = doc.getElementById("regionServerDetailsTable");
-      TableInfo table_info = new TableInfo(element);
-      for (int i = 0; i < table_info.regionNum(); i++) {
-        RegionInfo region = table_info.getRegionAtIndex(i);
-        if (region.getSizeInBytes() > threshold_bytes) {
-          HRegionInfo target_region = regions.get(i);
-          LOG.info("Splitting region " + target_region.getEncodedName());
-          admin.splitRegion(target_region.getEncodedNameAsBytes());
+      pending.add(TableName.valueOf(split_table_url.value().substring(start)));
+    } else {
+      for (String table_or_pattern : tables.value()) {
+        if (table_or_pattern.startsWith("#")) {
+          pending.addAll(Arrays.asList(admin.listTableNames(Pattern.compile(table_or_pattern.substring(1)))));
+        } else {
+          pending.add(TableName.valueOf(table_or_pattern));
         }
       }
-      return RETURN_CODE.SUCCESS.code();
     }
 
-    List<TableName> pending = new ArrayList<>();
-    for (String table_or_pattern : tables.value()) {
-      if (table_or_pattern.startsWith("#")) {
-        pending.addAll(Arrays.asList(admin.listTableNames(Pattern.compile(table_or_pattern.substring(1)))));
-      } else {
-        pending.add(TableName.valueOf(table_or_pattern));
+    boolean by_size = !split_table_url.empty() || split_by_size.value();
+    // One status covers every table
+    ClusterStatus status = by_size ? admin.getClusterStatus() : null;
+    for (TableName name : pending) {
+      Map<String, RegionMetrics> metrics = by_size ? RegionMetrics.of(status, name) : null;
+      for (HRegionLocation location : locations(name)) {
+        if (by_size) {
+          RegionMetrics region_metrics = metrics.get(location.getRegionInfo().getEncodedName());
+          if (region_metrics == null || region_metrics.getSizeInBytes() <= threshold_bytes) {
+            continue;
+          }
+          LOG.info("Region " + location.getRegionInfo().getEncodedName() + " of table " + name + " has "
+                   + region_metrics.getSizeInBytes() + " bytes");
+        }
+        splits.add(newSplit(location));
       }
     }
+    return split(splits) ? RETURN_CODE.SUCCESS.code() : RETURN_CODE.FAILURE.code();
+  }
 
-    for (TableName name : pending) {
-      for (HRegionInfo region : admin.getTableRegions(name)) {
-        LOG.info("Splitting table " + name + "'s region " + region.getEncodedName());
-        admin.splitRegion(region.getEncodedNameAsBytes());
+  private List<HRegionLocation> locations(TableName table) throws IOException {
+    try (RegionLocator locator = connection.getRegionLocator(table)) {
+      return locator.getAllRegionLocations();
+    }
+  }
+
+  private SplitScheduler.Split newSplit(HRegionLocation location) throws IOException {
+    HRegionInfo region = location.getRegionInfo();
+    if (split_point.value() == SPLIT_POINT.MIDPOINT) {
+      return new SplitScheduler.Split(region, location.getServerName(), (byte[]) null);
+    }
+    List<byte[]> points = samplePoints(region, (SPLIT_POINT) split_point.value());
+    if (points.size() < split_pieces.value() - 1) {
+      LOG.warning("Only " + points.size() + " distinct split points are sampled of " + region.getEncodedName()
+                  + (points.isEmpty() ? ", it is split at its midpoint" : ""));
+    }
+    return new SplitScheduler.Split(region, location.getServerName(), points);
+  }
+
+  /**
+   * Samples rows of a region and takes weighted quantiles of them as split points. Rows come in order, so
+   * quantiles are a walk over cumulative weights. Once samples are full, every two adjacent ones are merged
+   * into the former, which halves resolution but keeps weights below every kept key exact.
+   * @return ascending split points strictly inside region, may be fewer than wanted
+   */
+  private List<byte[]> samplePoints(HRegionInfo region, SPLIT_POINT weight) throws IOException {
+    Scan scan = new Scan().withStartRow(region.getStartKey()).withStopRow(region.getEndKey());
+    scan.setCaching(1000);
+    scan.setCacheBlocks(false);
+    FilterList filters = new FilterList();
+    if (weight == SPLIT_POINT.SIZE) {
+      // Values are replaced by their lengths, so sizes are known without transferring values
+      filters.addFilter(new KeyOnlyFilter(true));
+    } else {
+      filters.addFilter(new FirstKeyOnlyFilter());
+      filters.addFilter(new KeyOnlyFilter());
+    }
+    if (sample_stride.value() > 1) {
+      filters.addFilter(new RandomRowFilter(1.0f / sample_stride.value()));
+    }
+    scan.setFilter(filters);
+
+    long recent_since = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(recent_write_sec.value());
+    int capacity = max_samples.value();
+    List<byte[]> keys = new ArrayList<>();
+    double[] weights = new double[capacity];
+    double total = 0;
+    try (Table table = connection.getTable(region.getTable());
+         ResultScanner scanner = table.getScanner(scan)) {
+      for (Result result : scanner) {
+        double w = 0;
+        for (Cell cell : result.rawCells()) {
+          if (weight == SPLIT_POINT.SIZE) {
+            w += cell.getRowLength() + cell.getFamilyLength() + cell.getQualifierLength()
+                 + Bytes.toInt(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+          } else if (weight == SPLIT_POINT.ROWS || cell.getTimestamp() >= recent_since) {
+            w += 1;
+          }
+        }
+        if (keys.size() == capacity) {
+          int half = 0;
+          for (int i = 0; i < capacity; i += 2) {
+            keys.set(half, keys.get(i));
+            weights[half++] = weights[i] + (i + 1 < capacity ? weights[i + 1] : 0);
+          }
+          keys.subList(half, capacity).clear();
+        }
+        weights[keys.size()] = w;
+        keys.add(result.getRow());
+        total += w;
       }
     }
-    return RETURN_CODE.SUCCESS.code();
+    LOG.info("Sampled " + keys.size() + " rows of " + region.getEncodedName() + ", total weight " + total);
+
+    List<byte[]> points = new ArrayList<>();
+    int pieces = split_pieces.value();
+    double cumulative = 0;
+    for (int i = 0, piece = 1; i < keys.size() && piece < pieces && total > 0; i++) {
+      // A point goes to the upper daughter, so it is taken once weights below it reach the quantile
+      if (cumulative >= total * piece / pieces) {
+        byte[] key = keys.get(i);
+        if (Bytes.compareTo(key, region.getStartKey()) > 0
+            && (points.isEmpty() || Bytes.compareTo(key, points.get(points.size() - 1)) > 0)) {
+          points.add(key);
+        }
+        while (piece < pieces && cumulative >= total * piece / pieces) {
+          piece++;
+        }
+      }
+      cumulative += weights[i];
+    }
+    return points;
+  }
+
+  /**
+   * @return true if every region is split
+   */
+  private boolean split(List<SplitScheduler.Split> splits) throws InterruptedException {
+    LOG.info(splits.size() + " regions to split");
+    SplitScheduler.Report report = scheduler.split(splits);
+    report.log("Split");
+    return report.failed().isEmpty();
   }
 
   @Override protected void destroyToy() throws Exception {
+    if (scheduler != null) {
+      scheduler.close();
+    }
     admin.close();
     super.destroyToy();
   }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.RegionLoad;
+import org.apache.hadoop.hbase.ServerLoad;
+import org.apache.hadoop.hbase.ServerName;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Plans to drain a server's regions across target servers. Targets are weighted by region count, request rate
+ * and memstore size taken from {@link ServerLoad}, each normalized by its mean after draining. Heaviest regions
+ * are placed first, each onto the target whose weighted load is the lowest once the region is added, and a target
+ * never holds more regions than its budget. Planned regions count towards later plans of the same planner,
+ * so draining several servers with one planner spreads all of them, until they are released. A planner is not
+ * thread safe, servers drained at the same time should share one under a lock.
+ */
+public final class DrainPlanner {
+
+  private static final Logger LOG = Logger.getLogger(DrainPlanner.class.getName());
+
+  private final ClusterStatus status;
+  private final List<Target> targets = new ArrayList<>();
+  private final int max_regions_per_target;
+  private final double weight_regions;
+  private final double weight_requests;
+  private final double weight_memstore;
+  private final Map<MoveScheduler.Move, Placement> placements = new IdentityHashMap<>();
+  private int unplaced;
+
+  /**
+   * @param status cluster status, loads are taken from it once
+   * @param targets servers to drain to
+   * @param max_regions_per_target regions a target may hold in total, including those it holds already
+   * @param weight_regions weight of region count
+   * @param weight_requests weight of request rate
+   * @param weight_memstore weight of memstore size
+   */
+  public DrainPlanner(ClusterStatus status, List<ServerName> targets, int max_regions_per_target,
+                      double weight_regions, double weight_requests, double weight_memstore) {
+    this.status = status;
+    for (ServerName server : targets) {
+      ServerLoad load = status.getLoad(server);
+      if (load == null) {
+        throw new IllegalStateException("No load of " + server + ", it may be offline");
+      }
+      this.targets.add(new Target(server, load.getNumberOfRegions(), load.getRequestsPerSecond(), load.getMemstoreSizeInMB()));
+    }
+    this.max_regions_per_target = max_regions_per_target;
+    this.weight_regions = weight_regions;
+    this.weight_requests = weight_requests;
+    this.weight_memstore = weight_memstore;
+  }
+
+  /**
+   * @param source server to drain
+   * @param regions regions on source
+   * @return moves of regions placed, regions over budget of every target are left on source
+   */
+  public List<MoveScheduler.Move> plan(ServerName source, List<HRegionInfo> regions) {
+    return plan(source, regions, Collections.emptySet());
+  }
+
+  /**
+   * @param source server to drain
+   * @param regions regions on source
+   * @param excluded host and port of targets not to drain to for now, e.g. they are restarting
+   * @return moves of regions placed, regions over budget of every target left are left on source
+   */
+  public List<MoveScheduler.Move> plan(ServerName source, List<HRegionInfo> regions, Collection<String> excluded) {
+    ServerLoad source_load = status.getLoad(source);
+    Map<byte[], RegionLoad> region_loads = source_load == null ? Collections.emptyMap() : source_load.getRegionsLoad();
+    double source_requests = source_load == null ? 0 : source_load.getRequestsPerSecond();
+
+    // Rate of a region is not reported, share server's rate by region's request count instead
+    long total_count = 0;
+    for (HRegionInfo region : regions) {
+      RegionLoad load = region_loads.get(region.getRegionName());
+      total_count += load == null ? 0 : load.getRequestsCount();
+    }
+    List<Weight> weights = new ArrayList<>(regions.size());
+    double incoming_requests = 0, incoming_memstore = 0;
+    for (HRegionInfo region : regions) {
+      RegionLoad load = region_loads.get(region.getRegionName());
+      double requests = total_count == 0 ? source_requests / regions.size() :
+                        load == null ? 0 : source_requests * load.getRequestsCount() / total_count;
+      int memstore = load == null ? 0 : load.getMemStoreSizeMB();
+      weights.add(new Weight(region, requests, memstore));
+      incoming_requests += requests;
+      incoming_memstore += memstore;
+    }
+
+    double regions_total = regions.size(), requests_total = incoming_requests, memstore_total = incoming_memstore;
+    for (Target target : targets) {
+      regions_total += target.regions;
+      requests_total += target.requests;
+      memstore_total += target.memstore;
+    }
+    double regions_mean = Math.max(1, regions_total / targets.size());
+    double requests_mean = Math.max(1, requests_total / targets.size());
+    double memstore_mean = Math.max(1, memstore_total / targets.size());
+
+    weights.sort(Comparator.comparingDouble(
+        (Weight w) -> weight_requests * w.requests / requests_mean + weight_memstore * w.memstore / memstore_mean).reversed());
+    List<MoveScheduler.Move> moves = new ArrayList<>(regions.size());
+    for (Weight weight : weights) {
+      Target best = null;
+      double best_score = Double.MAX_VALUE;
+      for (Target target : targets) {
+        if (target.server.equals(source) || target.regions >= max_regions_per_target
+            || excluded.contains(target.server.getHostAndPort())) {
+          continue;
+        }
+        double score = weight_regions * (target.regions + 1) / regions_mean
+                       + weight_requests * (target.requests + weight.requests) / requests_mean
+                       + weight_memstore * (target.memstore + weight.memstore) / memstore_mean;
+        if (score < best_score) {
+          best = target;
+          best_score = score;
+        }
+      }
+      if (best == null) {
+        unplaced++;
+        LOG.warning("No target has budget for " + weight.region.getEncodedName() + ", it stays on " + source);
+        continue;
+      }
+      best.regions++;
+      best.requests += weight.requests;
+      best.memstore += weight.memstore;
+      best.planned++;
+      MoveScheduler.Move move = new MoveScheduler.Move(weight.region, source, best.server);
+      placements.put(move, new Placement(best, weight));
+      moves.add(move);
+    }
+    for (Target target : targets) {
+      LOG.info(String.format("Planned %d regions to %s, it holds %d regions, %.1f requests/sec, %.0f MB memstore after drain",
+          target.planned, target.server, target.regions, target.requests, target.memstore));
+      target.planned = 0;
+    }
+    return moves;
+  }
+
+  /**
+   * Takes planned moves off their targets, once regions are moved back to their source.
+   * @param moves moves returned by this planner, others are ignored
+   */
+  public void release(List<MoveScheduler.Move> moves) {
+    for (MoveScheduler.Move move : moves) {
+      Placement placement = placements.remove(move);
+      if (placement != null) {
+        placement.target.regions--;
+        placement.target.requests -= placement.weight.requests;
+        placement.target.memstore -= placement.weight.memstore;
+      }
+    }
+  }
+
+  /**
+   * @return regions left on sources for lack of budget, over all plans
+   */
+  public int unplaced() {
+    return unplaced;
+  }
+
+  private static final class Target {
+
+    private final ServerName server;
+    private int regions;
+    private double requests;
+    private double memstore;
+    private int planned;
+
+    Target(ServerName server, int regions, double requests, double memstore) {
+      this.server = server;
+      this.regions = regions;
+      this.requests = requests;
+      this.memstore = memstore;
+    }
+
+  }
+
+  private static final class Placement {
+
+    private final Target target;
+    private final Weight weight;
+
+    Placement(Target target, Weight weight) {
+      this.target = target;
+      this.weight = weight;
+    }
+
+  }
+
+  private static final class Weight {
+
+    private final HRegionInfo region;
+    private final double requests;
+    private final double memstore;
+
+    Weight(HRegionInfo region, double requests, double memstore) {
+      this.region = region;
+      this.requests = requests;
+      this.memstore = memstore;
+    }
+
+  }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.MetaTableAccessor;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.UnknownRegionException;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Moves regions with bounded concurrency. Each region is tracked by a future, which completes once meta shows
+ * the region on its target, or fails once its attempts run out. An attempt times out if the region does not
+ * show up on target in time, and failed attempts are retried after an exponential backoff. Moves in flight are
+ * capped per source and per target server, so no server is flooded by closing or opening regions.
+ */
+public final class MoveScheduler implements AutoCloseable {
+
+  private static final Logger LOG = Logger.getLogger(MoveScheduler.class.getName());
+  private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(1);
+  private static final long POLL_INTERVAL_MS = 100;
+
+  private final Connection connection;
+  private final ExecutorService executor;
+  private final int max_per_source;
+  private final int max_per_target;
+  private final long attempt_timeout_ms;
+  private final int max_attempts;
+  private final long backoff_ms;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final List<Move> pending = new LinkedList<>();
+  private final Map<ServerName, Integer> closing = new HashMap<>();
+  private final Map<ServerName, Integer> opening = new HashMap<>();
+  private volatile Listener listener;
+
+  /**
+   * @param connection connection, it is not closed by this
+   * @param threads moves in flight at most
+   * @param max_per_source moves in flight out of a server at most
+   * @param max_per_target moves in flight into a server at most
+   * @param attempt_timeout_ms time for an attempt to see region on its target
+   * @param max_attempts attempts of a region before it is given up
+   * @param backoff_ms backoff before the first retry, it doubles every retry
+   */
+  public MoveScheduler(Connection connection, int threads, int max_per_source, int max_per_target,
+                       long attempt_timeout_ms, int max_attempts, long backoff_ms) {
+    this.connection = connection;
+    this.executor = Executors.newFixedThreadPool(threads);
+    this.max_per_source = max_per_source;
+    this.max_per_target = max_per_target;
+    this.attempt_timeout_ms = attempt_timeout_ms;
+    this.max_attempts = max_attempts;
+    this.backoff_ms = backoff_ms;
+  }
+
+  /**
+   * @param listener listener of every attempt issued from now on, null for none
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Moves regions and blocks until every one is either moved or failed. Several threads may move at the same time,
+   * their moves share the caps.
+   * @param moves moves to run, a move once run should not be passed again
+   * @return report of these moves
+   */
+  public Report move(List<Move> moves) throws InterruptedException {
+    long start = System.nanoTime();
+    lock.lock();
+    try {
+      pending.addAll(moves);
+      while (!done(moves)) {
+        changed.awaitNanos(dispatch(System.nanoTime()));
+      }
+      int retried = 0;
+      for (Move move : moves) {
+        retried += move.attempts - 1;
+      }
+      return new Report(moves, System.nanoTime() - start, retried);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Dispatches due moves under the caps, must hold the lock.
+   * @return nanoseconds until the earliest retry is due, at most a second
+   */
+  private long dispatch(long now) {
+    long wait_ns = TimeUnit.SECONDS.toNanos(1);
+    for (Iterator<Move> it = pending.iterator(); it.hasNext(); ) {
+      Move move = it.next();
+      if (move.not_before > now) {
+        wait_ns = Math.min(wait_ns, move.not_before - now);
+        continue;
+      }
+      if (count(closing, move.source) >= max_per_source || count(opening, move.target) >= max_per_target) {
+        continue;
+      }
+      it.remove();
+      add(closing, move.source, 1);
+      add(opening, move.target, 1);
+      move.attempts++;
+      executor.submit(() -> attempt(move));
+    }
+    return wait_ns;
+  }
+
+  private static boolean done(List<Move> moves) {
+    for (Move move : moves) {
+      if (!move.future.isDone()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void attempt(Move move) {
+    Exception error = null;
+    try (Admin admin = connection.getAdmin()) {
+      long start = System.nanoTime();
+      if (!isOnTarget(move)) {
+        Listener current = listener;
+        if (current != null) {
+          current.started(move);
+        }
+        try {
+          admin.move(move.region.getEncodedNameAsBytes(), Bytes.toBytes(move.target.getServerName()));
+          // Master assigns asynchronously, the move is done once meta says so
+          long deadline = start + TimeUnit.MILLISECONDS.toNanos(attempt_timeout_ms);
+          while (!isOnTarget(move)) {
+            if (System.nanoTime() > deadline) {
+              throw new TimeoutException("Not on target after " + attempt_timeout_ms + " ms");
+            }
+            TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MS);
+          }
+        } finally {
+          if (current != null) {
+            current.finished(move);
+          }
+        }
+      }
+      move.elapsed_ns = System.nanoTime() - start;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      error = e;
+    } catch (Exception e) {
+      error = e;
+    }
+    finished(move, error);
+  }
+
+  private boolean isOnTarget(Move move) throws IOException {
+    HRegionLocation location = MetaTableAccessor.getRegionLocation(connection, move.region.getRegionName());
+    if (location == null) {
+      // Split or merged away in the meantime
+      throw new UnknownRegionException(move.region.getRegionNameAsString());
+    }
+    return move.target.equals(location.getServerName());
+  }
+
+  private void finished(Move move, Exception error) {
+    lock.lock();
+    try {
+      add(closing, move.source, -1);
+      add(opening, move.target, -1);
+      if (error == null) {
+        LOG.info("Moved " + move + " in " + TimeUnit.NANOSECONDS.toMillis(move.elapsed_ns) + " ms");
+        move.future.complete(null);
+      } else if (move.attempts < max_attempts && !(error instanceof DoNotRetryIOException)
+                 && !(error instanceof InterruptedException)) {
+        long backoff = Math.min(MAX_BACKOFF_MS, backoff_ms << Math.min(move.attempts - 1, 16));
+        LOG.warning("Attempt " + move.attempts + " of moving " + move + " failed, retry in " + backoff + " ms: " + error);
+        move.not_before = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+        pending.add(move);
+      } else {
+        LOG.warning("Gave up moving " + move + " after " + move.attempts + " attempts: " + error);
+        move.future.completeExceptionally(error);
+      }
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static int count(Map<ServerName, Integer> counts, ServerName server) {
+    // Unknown server is not capped
+    return server == null ? 0 : counts.getOrDefault(server, 0);
+  }
+
+  private static void add(Map<ServerName, Integer> counts, ServerName server, int delta) {
+    if (server != null) {
+      counts.merge(server, delta, Integer::sum);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Notified around every attempt which actually moves a region, from the thread running the attempt.
+   */
+  public interface Listener {
+
+    void started(Move move);
+
+    /**
+     * Called whether the attempt succeeded or not.
+     */
+    void finished(Move move);
+
+  }
+
+  /**
+   * A region to move from source to target. Source is only used for capping, it may be null if unknown.
+   */
+  public static final class Move {
+
+    private final HRegionInfo region;
+    private final ServerName source;
+    private final ServerName target;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private int attempts;
+    private long not_before;
+    private long elapsed_ns;
+
+    public Move(HRegionInfo region, ServerName source, ServerName target) {
+      this.region = region;
+      this.source = source;
+      this.target = target;
+    }
+
+    public HRegionInfo region() {
+      return region;
+    }
+
+    public ServerName source() {
+      return source;
+    }
+
+    public ServerName target() {
+      return target;
+    }
+
+    /**
+     * @return a future completed once region is on target, or failed with the last error
+     */
+    public CompletableFuture<Void> future() {
+      return future;
+    }
+
+    @Override
+    public String toString() {
+      return region.getEncodedName() + " from " + source + " to " + target;
+    }
+
+  }
+
+  /**
+   * Outcome of a batch of moves.
+   */
+  public static final class Report {
+
+    private final List<Move> moved = new ArrayList<>();
+    private final List<Move> failed = new ArrayList<>();
+    private final long elapsed_ns;
+    private final int retries;
+
+    private Report(List<Move> moves, long elapsed_ns, int retries) {
+      for (Move move : moves) {
+        (move.future.isCompletedExceptionally() ? failed : moved).add(move);
+      }
+      this.elapsed_ns = elapsed_ns;
+      this.retries = retries;
+    }
+
+    public List<Move> moved() {
+      return moved;
+    }
+
+    public List<Move> failed() {
+      return failed;
+    }
+
+    /**
+     * Logs throughput and every failure with its cause.
+     */
+    public void log(String what) {
+      double elapsed_sec = elapsed_ns / 1e9;
+      LOG.info(String.format("%s: moved %d of %d regions in %.1f sec, %.2f regions/sec, %d retries, %d failed",
+          what, moved.size(), moved.size() + failed.size(), elapsed_sec, moved.size() / Math.max(elapsed_sec, 1e-3),
+          retries, failed.size()));
+      for (Move move : failed) {
+        try {
+          move.future.join();
+        } catch (Exception e) {
+          LOG.warning("Failed to move " + move + ": " + (e.getCause() == null ? e : e.getCause()));
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.RegionLoad;
+import org.apache.hadoop.hbase.ServerLoad;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Metrics of a region as region servers report them to master, taken from {@link ClusterStatus} in one call
+ * instead of from master's web pages. Sizes are in bytes, requests are counts since region is opened.
+ */
+public final class RegionMetrics {
+
+  private final String encoded_name;
+  private final ServerName server;
+  private final long store_file_size;
+  private final long memstore_size;
+  private final int store_files;
+  private final long read_requests;
+  private final long write_requests;
+  private final float locality;
+  private final long compacting_kvs;
+  private final long compacted_kvs;
+
+  private RegionMetrics(ServerName server, RegionLoad load) {
+    this.encoded_name = HRegionInfo.encodeRegionName(load.getName());
+    this.server = server;
+    this.store_file_size = load.getStorefileSizeMB() * Constants.ONE_MB;
+    this.memstore_size = load.getMemStoreSizeMB() * Constants.ONE_MB;
+    this.store_files = load.getStorefiles();
+    this.read_requests = load.getReadRequestsCount();
+    this.write_requests = load.getWriteRequestsCount();
+    this.locality = load.getDataLocality();
+    this.compacting_kvs = load.getTotalCompactingKVs();
+    this.compacted_kvs = load.getCurrentCompactedKVs();
+  }
+
+  /**
+   * @param status cluster status
+   * @param table table of regions, null for all tables
+   * @return metrics of online regions by encoded name
+   */
+  public static Map<String, RegionMetrics> of(ClusterStatus status, TableName table) {
+    Map<String, RegionMetrics> metrics = new HashMap<>();
+    for (ServerName server : status.getServers()) {
+      ServerLoad load = status.getLoad(server);
+      if (load == null) {
+        continue;
+      }
+      for (RegionLoad region : load.getRegionsLoad().values()) {
+        if (table == null || table.equals(HRegionInfo.getTable(region.getName()))) {
+          RegionMetrics region_metrics = new RegionMetrics(server, region);
+          metrics.put(region_metrics.encoded_name, region_metrics);
+        }
+      }
+    }
+    return metrics;
+  }
+
+  public String getEncodedName() {
+    return encoded_name;
+  }
+
+  public ServerName getServer() {
+    return server;
+  }
+
+  /**
+   * @return size of store files, in MB precision
+   */
+  public long getSizeInBytes() {
+    return store_file_size;
+  }
+
+  public long getMemstoreSizeInBytes() {
+    return memstore_size;
+  }
+
+  public int getStoreFiles() {
+    return store_files;
+  }
+
+  public long readRequests() {
+    return read_requests;
+  }
+
+  public long writeRequests() {
+    return write_requests;
+  }
+
+  public float getLocality() {
+    return locality;
+  }
+
+  /**
+   * @return true if a compaction of the region is running, as far as its last report tells
+   */
+  public boolean isCompacting() {
+    return compacted_kvs < compacting_kvs;
+  }
+
+  @Override
+  public String toString() {
+    return "RegionMetrics{" +
+        "name='" + encoded_name + '\'' +
+        ", server='" + server + '\'' +
+        ", store_file_size=" + store_file_size +
+        ", memstore_size=" + memstore_size +
+        ", store_files=" + store_files +
+        ", read_requests=" + read_requests +
+        ", write_requests=" + write_requests +
+        ", locality=" + locality +
+        ", compacting=" + isCompacting() +
+        '}';
+  }
+
+}
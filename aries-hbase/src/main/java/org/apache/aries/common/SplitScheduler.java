@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.MetaTableAccessor;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.PairOfSameType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Splits regions with bounded concurrency. A split holds a slot of its server and a slot of the cluster from
+ * the request until meta shows both daughters online, so no server is asked to split, and then compact
+ * daughters of, more regions than its cap at a time. A split not done in time is counted as failed, which is
+ * also what happens when region server declines it, e.g. the region still holds references of an earlier split.
+ * Regions compacting are sampled from cluster status meanwhile, the peak is reported as pending compactions.
+ * A region split at several points is split at the middle one first, then each daughter at the points in its
+ * range. A daughter holds references to its parent until compacted and declines splits till then, so a request
+ * not taken yet is repeated every {@value #RETRY_INTERVAL_MS} ms.
+ */
+public final class SplitScheduler implements AutoCloseable {
+
+  private static final Logger LOG = Logger.getLogger(SplitScheduler.class.getName());
+  private static final long RETRY_INTERVAL_MS = 10000;
+
+  private final Connection connection;
+  private final Admin admin;
+  private final int max_per_server;
+  private final int max_total;
+  private final long timeout_ns;
+  private final long poll_interval_ms;
+  private final long status_interval_ns;
+
+  /**
+   * @param connection connection, it is not closed by this
+   * @param max_per_server splits in flight on a server at most
+   * @param max_total splits in flight in cluster at most
+   * @param timeout_ms time for a split to have its daughters online, including time to wait for a daughter to be
+   *                   splittable again when a region is split at several points
+   * @param poll_interval_ms interval of polling meta for daughters
+   * @param status_interval_ms interval of sampling compactions from cluster status
+   */
+  public SplitScheduler(Connection connection, int max_per_server, int max_total, long timeout_ms,
+                        long poll_interval_ms, long status_interval_ms) throws IOException {
+    this.connection = connection;
+    this.admin = connection.getAdmin();
+    this.max_per_server = max_per_server;
+    this.max_total = max_total;
+    this.timeout_ns = TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+    this.poll_interval_ms = poll_interval_ms;
+    this.status_interval_ns = TimeUnit.MILLISECONDS.toNanos(status_interval_ms);
+  }
+
+  /**
+   * Splits regions and blocks until every one is either split or failed.
+   * @param splits splits to run
+   * @return report of these splits, including splits of daughters
+   */
+  public Report split(List<Split> splits) throws InterruptedException {
+    long start = System.nanoTime();
+    List<Split> pending = new LinkedList<>(splits);
+    List<Split> in_flight = new ArrayList<>();
+    Map<ServerName, Integer> splitting = new HashMap<>();
+    Report report = new Report();
+    long next_status = start;
+    while (!pending.isEmpty() || !in_flight.isEmpty()) {
+      for (Iterator<Split> it = pending.iterator(); it.hasNext() && in_flight.size() < max_total; ) {
+        Split split = it.next();
+        if (splitting.getOrDefault(split.server, 0) >= max_per_server) {
+          continue;
+        }
+        it.remove();
+        try {
+          request(split);
+          split.start_ns = split.requested_ns;
+          splitting.merge(split.server, 1, Integer::sum);
+          in_flight.add(split);
+          LOG.info("Splitting " + split);
+        } catch (IOException e) {
+          LOG.warning("Failed to split " + split + ": " + e);
+          report.failed.add(split);
+        }
+      }
+
+      TimeUnit.MILLISECONDS.sleep(poll_interval_ms);
+      long now = System.nanoTime();
+      for (Iterator<Split> it = in_flight.iterator(); it.hasNext(); ) {
+        Split split = it.next();
+        List<HRegionLocation> daughters;
+        try {
+          daughters = daughters(split);
+          if (daughters == null && now - split.requested_ns > TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MS)) {
+            request(split);
+          }
+        } catch (IOException e) {
+          LOG.warning("Failed to check split of " + split + ", will retry: " + e);
+          daughters = null;
+        }
+        if (daughters == null && now - split.start_ns <= timeout_ns) {
+          continue;
+        }
+        it.remove();
+        splitting.merge(split.server, -1, Integer::sum);
+        if (daughters != null) {
+          LOG.info("Split " + split + " in " + TimeUnit.NANOSECONDS.toMillis(now - split.start_ns) + " ms");
+          report.split.add(split);
+          pending.addAll(split.followUps(daughters));
+        } else {
+          LOG.warning("Daughters of " + split + " are not online in " + TimeUnit.NANOSECONDS.toSeconds(timeout_ns)
+                      + " sec, region server may have declined it");
+          report.failed.add(split);
+        }
+      }
+
+      if (now >= next_status) {
+        report.peak_compactions = Math.max(report.peak_compactions, compactions());
+        next_status = now + status_interval_ns;
+      }
+    }
+    report.elapsed_ns = System.nanoTime() - start;
+    return report;
+  }
+
+  private void request(Split split) throws IOException {
+    split.requested_ns = System.nanoTime();
+    if (split.point() == null) {
+      admin.splitRegion(split.region.getEncodedNameAsBytes());
+    } else {
+      admin.splitRegion(split.region.getEncodedNameAsBytes(), split.point());
+    }
+  }
+
+  /**
+   * @return locations of daughters once parent is split and both are assigned, empty if parent is cleaned up
+   *         already, null if not done yet
+   */
+  private List<HRegionLocation> daughters(Split split) throws IOException {
+    Result result = MetaTableAccessor.getRegionResult(connection, split.region.getRegionName());
+    if (result == null || result.isEmpty()) {
+      // Catalog janitor removes a parent after its daughters dropped their references
+      return Collections.emptyList();
+    }
+    HRegionInfo parent = MetaTableAccessor.getHRegionInfo(result);
+    if (parent == null || !parent.isSplitParent()) {
+      return null;
+    }
+    PairOfSameType<HRegionInfo> daughters = MetaTableAccessor.getDaughterRegions(result);
+    HRegionLocation first = online(daughters.getFirst());
+    HRegionLocation second = online(daughters.getSecond());
+    return first == null || second == null ? null : Arrays.asList(first, second);
+  }
+
+  private HRegionLocation online(HRegionInfo region) throws IOException {
+    if (region == null) {
+      return null;
+    }
+    HRegionLocation location = MetaTableAccessor.getRegionLocation(connection, region.getRegionName());
+    return location == null || location.getServerName() == null ? null : location;
+  }
+
+  private int compactions() {
+    try {
+      int compacting = 0;
+      for (RegionMetrics metrics : RegionMetrics.of(admin.getClusterStatus(), null).values()) {
+        if (metrics.isCompacting()) {
+          compacting++;
+        }
+      }
+      return compacting;
+    } catch (IOException e) {
+      LOG.warning("Failed to sample compactions: " + e);
+      return 0;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    admin.close();
+  }
+
+  /**
+   * A region to split on its server. Server is only used for capping, it may be null if unknown.
+   */
+  public static final class Split {
+
+    private final HRegionInfo region;
+    private final ServerName server;
+    private final List<byte[]> points;
+    private long start_ns;
+    private long requested_ns;
+
+    /**
+     * @param point split point, null for the one region server chooses
+     */
+    public Split(HRegionInfo region, ServerName server, byte[] point) {
+      this(region, server, point == null ? Collections.<byte[]>emptyList() : Collections.singletonList(point));
+    }
+
+    /**
+     * @param points ascending split points inside the region, empty for the one region server chooses
+     */
+    public Split(HRegionInfo region, ServerName server, List<byte[]> points) {
+      this.region = region;
+      this.server = server;
+      this.points = points;
+    }
+
+    /**
+     * @return the middle point, null if region server chooses
+     */
+    private byte[] point() {
+      return points.isEmpty() ? null : points.get(points.size() / 2);
+    }
+
+    /**
+     * @return splits of daughters at the points left on their sides
+     */
+    private List<Split> followUps(List<HRegionLocation> daughters) {
+      if (points.size() <= 1) {
+        return Collections.emptyList();
+      }
+      if (daughters.isEmpty()) {
+        LOG.warning("Daughters of " + this + " are gone already, " + (points.size() - 1) + " points are dropped");
+        return Collections.emptyList();
+      }
+      int middle = points.size() / 2;
+      List<Split> follow_ups = new ArrayList<>(2);
+      for (HRegionLocation daughter : daughters) {
+        List<byte[]> sides = Bytes.equals(daughter.getRegionInfo().getEndKey(), points.get(middle)) ?
+                             points.subList(0, middle) : points.subList(middle + 1, points.size());
+        if (!sides.isEmpty()) {
+          follow_ups.add(new Split(daughter.getRegionInfo(), daughter.getServerName(), sides));
+        }
+      }
+      return follow_ups;
+    }
+
+    public HRegionInfo region() {
+      return region;
+    }
+
+    public ServerName server() {
+      return server;
+    }
+
+    @Override
+    public String toString() {
+      byte[] point = point();
+      return region.getRegionNameAsString() + " on " + server + (point == null ? "" : " at " + Bytes.toStringBinary(point));
+    }
+
+  }
+
+  /**
+   * Outcome of a batch of splits.
+   */
+  public static final class Report {
+
+    private final List<Split> split = new ArrayList<>();
+    private final List<Split> failed = new ArrayList<>();
+    private long elapsed_ns;
+    private int peak_compactions;
+
+    private Report() {
+    }
+
+    public List<Split> split() {
+      return split;
+    }
+
+    public List<Split> failed() {
+      return failed;
+    }
+
+    /**
+     * @return most regions seen compacting at the same time in cluster
+     */
+    public int peakCompactions() {
+      return peak_compactions;
+    }
+
+    /**
+     * Logs throughput and the peak of pending compactions.
+     */
+    public void log(String what) {
+      double elapsed_min = elapsed_ns / 6e10;
+      LOG.info(String.format("%s: split %d of %d regions in %.1f min, %.2f splits/min, %d failed, "
+                             + "at most %d regions compacting at the same time",
+          what, split.size(), split.size() + failed.size(), elapsed_min, split.size() / Math.max(elapsed_min, 1e-3),
+          failed.size(), peak_compactions));
+    }
+
+  }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2019 R.C
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.aries.common;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Measures how long regions are unavailable to clients while they move. For every attempt of a move, a Get of
+ * the region's start key is issued every interval, until the move finishes and a probe started after that
+ * succeeds. A window opens at the first failed or slow probe and closes at the end of the next good one,
+ * windows of a region are summed up. Probes go through a connection of their own without retries,
+ * whose timeout is the slow threshold, so a probe never waits longer than it takes to be counted as bad.
+ */
+public final class UnavailabilityProbe implements MoveScheduler.Listener, AutoCloseable {
+
+  private static final Logger LOG = Logger.getLogger(UnavailabilityProbe.class.getName());
+  private static final int WORST_REGIONS = 10;
+
+  private final Connection connection;
+  private final ExecutorService executor;
+  private final long interval_ns;
+  private final long slow_ns;
+  private final long linger_ns;
+  private final Map<MoveScheduler.Move, Session> sessions = new ConcurrentHashMap<>();
+  private final Map<MoveScheduler.Move, Long> windows = new ConcurrentHashMap<>();
+  private final List<Future<?>> futures = new CopyOnWriteArrayList<>();
+
+  /**
+   * @param conf configuration of cluster, it is copied
+   * @param interval_ms interval between probes of a region
+   * @param slow_ms a probe slower than this is counted as failed
+   * @param linger_ms time to keep probing after a move finishes, a window still open then is closed there
+   */
+  public UnavailabilityProbe(Configuration conf, long interval_ms, long slow_ms, long linger_ms) throws IOException {
+    Configuration probe_conf = new Configuration(conf);
+    probe_conf.setInt(HConstants.HBASE_CLIENT_RETRIES_NUMBER, 0);
+    probe_conf.setLong(HConstants.HBASE_RPC_READ_TIMEOUT_KEY, slow_ms);
+    probe_conf.setLong(HConstants.HBASE_CLIENT_OPERATION_TIMEOUT, slow_ms);
+    probe_conf.setLong(HConstants.HBASE_CLIENT_META_OPERATION_TIMEOUT, slow_ms);
+    this.connection = ConnectionFactory.createConnection(probe_conf);
+    this.executor = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "unavailability-probe");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.interval_ns = TimeUnit.MILLISECONDS.toNanos(interval_ms);
+    this.slow_ns = TimeUnit.MILLISECONDS.toNanos(slow_ms);
+    this.linger_ns = TimeUnit.MILLISECONDS.toNanos(linger_ms);
+  }
+
+  @Override
+  public void started(MoveScheduler.Move move) {
+    Session session = new Session(move);
+    sessions.put(move, session);
+    futures.add(executor.submit(session));
+  }
+
+  @Override
+  public void finished(MoveScheduler.Move move) {
+    Session session = sessions.remove(move);
+    if (session != null) {
+      session.finish_ns = System.nanoTime();
+      session.finished = true;
+    }
+  }
+
+  /**
+   * Waits for probes to end, then logs distribution of unavailability in milliseconds and the worst regions.
+   */
+  public void report() throws InterruptedException {
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (Exception e) {
+        LOG.warning("Probe failed: " + e);
+      }
+    }
+    LatencyHistogram histogram = new LatencyHistogram(TimeUnit.HOURS.toMillis(1), 3);
+    List<Map.Entry<MoveScheduler.Move, Long>> worst = new ArrayList<>(windows.entrySet());
+    for (Map.Entry<MoveScheduler.Move, Long> window : worst) {
+      histogram.record(TimeUnit.NANOSECONDS.toMillis(window.getValue()));
+    }
+    LOG.info("Unavailability of moved regions in ms: " + histogram.toPercentileString());
+    worst.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    for (Map.Entry<MoveScheduler.Move, Long> window : worst.subList(0, Math.min(WORST_REGIONS, worst.size()))) {
+      LOG.info("Region " + window.getKey() + " was unavailable for " + TimeUnit.NANOSECONDS.toMillis(window.getValue()) + " ms");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    connection.close();
+  }
+
+  private final class Session implements Runnable {
+
+    private final MoveScheduler.Move move;
+    private final Get get;
+    private volatile boolean finished;
+    private volatile long finish_ns;
+
+    Session(MoveScheduler.Move move) {
+      this.move = move;
+      byte[] start_key = move.region().getStartKey();
+      // Empty row is not a valid Get, the smallest non-empty row is in the first region as well
+      this.get = new Get(start_key.length == 0 ? new byte[1] : start_key);
+      this.get.setCheckExistenceOnly(true);
+    }
+
+    @Override
+    public void run() {
+      long window_ns = 0;
+      long bad_since = -1;
+      try (Table table = connection.getTable(move.region().getTable())) {
+        while (!Thread.currentThread().isInterrupted()) {
+          long start = System.nanoTime();
+          boolean good = probe(table);
+          long end = System.nanoTime();
+          good &= end - start <= slow_ns;
+          if (!good && bad_since < 0) {
+            bad_since = start;
+          } else if (good && bad_since >= 0) {
+            window_ns += end - bad_since;
+            bad_since = -1;
+          }
+          if (finished && ((good && start >= finish_ns) || end - finish_ns > linger_ns)) {
+            break;
+          }
+          long sleep_ns = start + interval_ns - System.nanoTime();
+          if (sleep_ns > 0) {
+            TimeUnit.NANOSECONDS.sleep(sleep_ns);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        LOG.warning("Failed to probe " + move.region().getEncodedName() + ": " + e);
+      }
+      if (bad_since >= 0) {
+        window_ns += System.nanoTime() - bad_since;
+      }
+      windows.merge(move, window_ns, Long::sum);
+    }
+
+    private boolean probe(Table table) {
+      try {
+        table.exists(get);
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+  }
+
+}